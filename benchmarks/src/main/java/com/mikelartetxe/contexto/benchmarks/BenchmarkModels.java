@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.BuildOptions;
+import com.mikelartetxe.contexto.core.ContextDictionary;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+
+// Models used by the benchmarks. Synthetic models are built from a random
+// parallel corpus whose words follow a Zipf distribution, and any other model
+// name is taken as the path to an existing binary model.
+class BenchmarkModels {
+    
+    private static final Charset CHARSET = Charset.forName("utf-8");
+    
+    public static final String SMALL = "synthetic-small";
+    public static final String LARGE = "synthetic-large";
+    
+    private static final int SMALL_SENTENCES = 2000;
+    private static final int LARGE_SENTENCES = 20000;
+    
+    private static final int VOCABULARY_SIZE = 5000;
+    private static final int MIN_SENTENCE_LENGTH = 4;
+    private static final int MAX_SENTENCE_LENGTH = 20;
+    private static final int MAX_PHRASE_LENGTH = 3;
+    private static final int MAX_TRANSLATIONS = 10;
+    private static final int MAX_EXAMPLES = 10;
+    
+    private static final Map<String, File> BUILT = new HashMap<>();
+    
+    private BenchmarkModels() {}
+    
+    public static File get(String name) throws IOException {
+        return get(name, "default", new BuildOptions());
+    }
+    
+    // Synthetic models are built once per JVM and variant, which names the
+    // given build options, and deleted on exit. Existing models can only be
+    // used as they are.
+    public static synchronized File get(String name, String variant, BuildOptions options) throws IOException {
+        final String key = name + "/" + variant;
+        File f = BUILT.get(key);
+        if (f == null) {
+            if (name.equals(SMALL)) {
+                f = buildSynthetic(SMALL_SENTENCES, 1, options);
+            } else if (name.equals(LARGE)) {
+                f = buildSynthetic(LARGE_SENTENCES, 1, options);
+            } else {
+                f = new File(name);
+                if (!f.isFile()) {
+                    throw new IllegalArgumentException("Unknown model: " + name);
+                }
+                if (!variant.equals("default")) {
+                    throw new IllegalArgumentException("Only synthetic models can be built with other options");
+                }
+            }
+            BUILT.put(key, f);
+        }
+        return f;
+    }
+    
+    private static File buildSynthetic(int sentences, long seed, BuildOptions options) throws IOException {
+        final Random random = new Random(seed);
+        final String srcVocabulary[] = vocabulary(random);
+        final String trgVocabulary[] = vocabulary(random);
+        final double zipf[] = zipfDistribution(VOCABULARY_SIZE);
+        
+        // Phrases are sorted by their bytes, which is the same as their natural
+        // order for ASCII strings
+        final StringBuilder src = new StringBuilder(), trg = new StringBuilder();
+        final TreeMap<String, Map<String, Candidate>> phrases = new TreeMap<>();
+        for (int id = 0; id < sentences; id++) {
+            final int length = MIN_SENTENCE_LENGTH + random.nextInt(MAX_SENTENCE_LENGTH - MIN_SENTENCE_LENGTH + 1);
+            final String srcWords[] = new String[length], trgWords[] = new String[length];
+            for (int i = 0; i < length; i++) {
+                final int word = sample(zipf, random);
+                srcWords[i] = srcVocabulary[word];
+                trgWords[i] = random.nextDouble() < 0.9 ? trgVocabulary[word] : trgVocabulary[sample(zipf, random)];
+            }
+            final int srcOffsets[] = append(src, srcWords);
+            final int trgOffsets[] = append(trg, trgWords);
+            for (int i = 0; i < length; i++) {
+                for (int j = i + 1; j <= i + MAX_PHRASE_LENGTH && j <= length; j++) {
+                    final String srcPhrase = join(srcWords, i, j), trgPhrase = join(trgWords, i, j);
+                    Map<String, Candidate> translations = phrases.get(srcPhrase);
+                    if (translations == null) {
+                        translations = new HashMap<>();
+                        phrases.put(srcPhrase, translations);
+                    }
+                    Candidate candidate = translations.get(trgPhrase);
+                    if (candidate == null) {
+                        candidate = new Candidate(trgPhrase);
+                        translations.put(trgPhrase, candidate);
+                    }
+                    candidate.add(id + ":" + srcOffsets[i] + ":" + (srcOffsets[j] - 1) + ":" +
+                            trgOffsets[i] + ":" + (trgOffsets[j] - 1));
+                }
+            }
+        }
+        
+        // Write the phrase table in the format expected by the builder
+        final StringBuilder table = new StringBuilder();
+        for (Map.Entry<String, Map<String, Candidate>> entry : phrases.entrySet()) {
+            final List<Candidate> candidates = new ArrayList<>(entry.getValue().values());
+            Collections.sort(candidates, new Comparator<Candidate>() {
+                @Override
+                public int compare(Candidate a, Candidate b) {
+                    return Long.compare(b.occurrences, a.occurrences);
+                }
+            });
+            long weight = 0;
+            for (Candidate candidate : candidates) {
+                weight += candidate.occurrences;
+            }
+            table.append(entry.getKey()).append('\t').append(weight);
+            for (Candidate candidate : candidates.subList(0, Math.min(MAX_TRANSLATIONS, candidates.size()))) {
+                table.append('\t').append(candidate.translation);
+                table.append('\t').append(candidate.occurrences).append('\t');
+                for (int i = 0; i < candidate.examples.size(); i++) {
+                    if (i > 0) table.append(' ');
+                    table.append(candidate.examples.get(i));
+                }
+            }
+            table.append('\n');
+        }
+        
+        final File f = File.createTempFile("contexto-" + sentences + "-", ".dict.bin");
+        f.deleteOnExit();
+        try (final OutputStream os = new BufferedOutputStream(new FileOutputStream(f))) {
+            ContextDictionary.buildContextDictionary(
+                    new ByteArrayInputStream(table.toString().getBytes(CHARSET)),
+                    new ByteArrayInputStream(src.toString().getBytes(CHARSET)),
+                    new ByteArrayInputStream(trg.toString().getBytes(CHARSET)),
+                    os, options);
+        }
+        return f;
+    }
+    
+    // Random lowercase ASCII words, so that offsets in characters and bytes match
+    private static String[] vocabulary(Random random) {
+        final String res[] = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < res.length; i++) {
+            final char word[] = new char[2 + random.nextInt(8)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char)('a' + random.nextInt(26));
+            }
+            res[i] = new String(word);
+        }
+        return res;
+    }
+    
+    // Cumulative probabilities of a Zipf distribution with exponent 1
+    private static double[] zipfDistribution(int n) {
+        final double res[] = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / (i + 1);
+            res[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            res[i] /= sum;
+        }
+        return res;
+    }
+    
+    private static int sample(double cumulative[], Random random) {
+        final double p = random.nextDouble();
+        int lo = 0, hi = cumulative.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] < p) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    
+    // Appends a sentence to the corpus and returns the offset of each word
+    // within it, followed by the length of the sentence plus one
+    private static int[] append(StringBuilder corpus, String words[]) {
+        final int offsets[] = new int[words.length + 1];
+        int offset = 0;
+        for (int i = 0; i < words.length; i++) {
+            if (i > 0) corpus.append(' ');
+            offsets[i] = offset;
+            corpus.append(words[i]);
+            offset += words[i].length() + 1;
+        }
+        offsets[words.length] = offset;
+        corpus.append('\n');
+        return offsets;
+    }
+    
+    private static String join(String words[], int from, int to) {
+        final StringBuilder sb = new StringBuilder(words[from]);
+        for (int i = from + 1; i < to; i++) {
+            sb.append(' ').append(words[i]);
+        }
+        return sb.toString();
+    }
+    
+    
+    private static class Candidate {
+        
+        public final String translation;
+        public final List<String> examples = new ArrayList<>();
+        public long occurrences;
+        
+        public Candidate(String translation) {
+            this.translation = translation;
+        }
+        
+        public void add(String example) {
+            occurrences++;
+            if (examples.size() < MAX_EXAMPLES) examples.add(example);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.Translation;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Throughput of a single dictionary shared by an increasing number of threads
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrencyBenchmark {
+    
+    @Benchmark
+    @Threads(1)
+    public List<Translation> search1Thread(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.search(cursor.next(state.queries.hits));
+    }
+    
+    @Benchmark
+    @Threads(2)
+    public List<Translation> search2Threads(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.search(cursor.next(state.queries.hits));
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public List<Translation> search4Threads(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.search(cursor.next(state.queries.hits));
+    }
+    
+    @Benchmark
+    @Threads(Threads.MAX)
+    public List<Translation> searchMaxThreads(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.search(cursor.next(state.queries.hits));
+    }
+    
+    @Benchmark
+    @Threads(1)
+    public List<String> autocomplete1Thread(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.autocomplete(cursor.next(state.queries.deepPrefixes));
+    }
+    
+    @Benchmark
+    @Threads(Threads.MAX)
+    public List<String> autocompleteMaxThreads(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.autocomplete(cursor.next(state.queries.deepPrefixes));
+    }
+    
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.Translation;
+import com.mikelartetxe.contexto.core.TranslationExample;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+// Latency of fetching the examples of search results depending on how the
+// corpora are stored, which is where compressed corpora pay their price
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CorpusBenchmark {
+    
+    @Benchmark
+    public void examples(CorpusState state, QueryCursor cursor, Blackhole bh) {
+        for (Translation translation : state.dictionary.search(cursor.next(state.queries.hits))) {
+            for (TranslationExample example : translation.getExamples()) {
+                bh.consume(example.getSrcLeftContext());
+                bh.consume(example.getSrcPhrase());
+                bh.consume(example.getSrcRightContext());
+                bh.consume(example.getTrgLeftContext());
+                bh.consume(example.getTrgPhrase());
+                bh.consume(example.getTrgRightContext());
+            }
+        }
+    }
+    
+    
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.BuildOptions;
+import com.mikelartetxe.contexto.core.ContextDictionary;
+import com.mikelartetxe.contexto.core.DictionaryOptions;
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+// Synthetic model built with its corpora compressed in blocks of the given
+// size (0 for uncompressed corpora), and opened with the given cache of
+// decompressed blocks. The size of the model with respect to the uncompressed
+// one is printed when it is built.
+@State(Scope.Benchmark)
+public class CorpusState {
+    
+    @Param({BenchmarkModels.SMALL, BenchmarkModels.LARGE})
+    public String model;
+    
+    @Param({"0", "4096", "16384", "65536"})
+    public int corpusBlockSize;
+    
+    @Param({"0", "16777216"})
+    public long corpusCacheMaxBytes;
+    
+    public ContextDictionary dictionary;
+    public QuerySet queries;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final File file = corpusBlockSize == 0 ?
+                BenchmarkModels.get(model) :
+                BenchmarkModels.get(model, "blocks-" + corpusBlockSize,
+                        new BuildOptions().setCorpusBlockSize(corpusBlockSize));
+        final File uncompressed = BenchmarkModels.get(model);
+        System.out.printf("%nModel size: %d bytes (%.1f%% of the uncompressed model)%n",
+                file.length(), 100.0 * file.length() / uncompressed.length());
+        dictionary = ContextDictionary.fromBinaryModel(file,
+                new DictionaryOptions().setCorpusCacheMaxBytes(corpusCacheMaxBytes));
+        queries = new QuerySet(dictionary);
+    }
+    
+}
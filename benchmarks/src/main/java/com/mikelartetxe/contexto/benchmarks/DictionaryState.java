@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.ContextDictionary;
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+// Dictionary shared by all the benchmark threads. The model parameter takes
+// either the name of a synthetic model or the path to an existing one.
+@State(Scope.Benchmark)
+public class DictionaryState {
+    
+    @Param({BenchmarkModels.SMALL, BenchmarkModels.LARGE})
+    public String model;
+    
+    @Param({"false", "true"})
+    public boolean inMemory;
+    
+    public File file;
+    public ContextDictionary dictionary;
+    public QuerySet queries;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = BenchmarkModels.get(model);
+        dictionary = ContextDictionary.fromBinaryModel(file, inMemory);
+        queries = new QuerySet(dictionary);
+    }
+    
+}
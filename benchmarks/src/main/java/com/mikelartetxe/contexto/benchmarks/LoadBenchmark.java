@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.ContextDictionary;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+// Time to open a model, either reading it into the heap or memory mapping it
+// depending on the inMemory parameter. Mapping a model is almost free, but
+// its pages are loaded by the first lookups instead, so loadAndSearch also
+// runs a number of queries right after opening it.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class LoadBenchmark {
+    
+    private static final int QUERIES = 1000;
+    
+    @Benchmark
+    public ContextDictionary load(DictionaryState state) throws IOException {
+        return ContextDictionary.fromBinaryModel(state.file, state.inMemory);
+    }
+    
+    @Benchmark
+    public void loadAndSearch(DictionaryState state, Blackhole bh) throws IOException {
+        final ContextDictionary dictionary = ContextDictionary.fromBinaryModel(state.file, state.inMemory);
+        final String hits[] = state.queries.hits;
+        for (int i = 0; i < QUERIES; i++) {
+            bh.consume(dictionary.search(hits[i % hits.length]));
+        }
+    }
+    
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.Translation;
+import com.mikelartetxe.contexto.core.TranslationExample;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+// Latency of single lookups. Search results are decoded lazily, so the plain
+// search benchmarks only cover the trie and the translation headers, while
+// searchHitWithExamples also materializes every example.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+    
+    private static final int BATCH_SIZE = 1000;
+    
+    @Benchmark
+    public List<Translation> searchHit(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.search(cursor.next(state.queries.hits));
+    }
+    
+    @Benchmark
+    public List<Translation> searchMiss(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.search(cursor.next(state.queries.misses));
+    }
+    
+    @Benchmark
+    public void searchHitWithExamples(DictionaryState state, QueryCursor cursor, Blackhole bh) {
+        for (Translation translation : state.dictionary.search(cursor.next(state.queries.hits))) {
+            bh.consume(translation.getTranslation());
+            for (TranslationExample example : translation.getExamples()) {
+                bh.consume(example.getSrcLeftContext());
+                bh.consume(example.getSrcPhrase());
+                bh.consume(example.getSrcRightContext());
+                bh.consume(example.getTrgLeftContext());
+                bh.consume(example.getTrgPhrase());
+                bh.consume(example.getTrgRightContext());
+            }
+        }
+    }
+    
+    @Benchmark
+    public List<String> autocompleteShortPrefix(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.autocomplete(cursor.next(state.queries.shortPrefixes));
+    }
+    
+    @Benchmark
+    public List<String> autocompleteDeepPrefix(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.autocomplete(cursor.next(state.queries.deepPrefixes));
+    }
+    
+    @Benchmark
+    public List<String> autocompleteMiss(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.autocomplete(cursor.next(state.queries.misses));
+    }
+    
+    // More suggestions than the ones stored in the nodes, which needs a search
+    @Benchmark
+    public List<String> autocompleteShortPrefixTop25(DictionaryState state, QueryCursor cursor) {
+        return state.dictionary.autocomplete(cursor.next(state.queries.shortPrefixes), 25, 0);
+    }
+    
+    // Same queries as the one below, one at a time
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void searchHitLoop(DictionaryState state, QueryCursor cursor, Blackhole bh) {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            bh.consume(state.dictionary.search(cursor.next(state.queries.hits)));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<List<Translation>> searchHitBatch(DictionaryState state, QueryCursor cursor) {
+        final String batch[] = new String[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = cursor.next(state.queries.hits);
+        }
+        return state.dictionary.searchAll(Arrays.asList(batch));
+    }
+    
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.BuildOptions;
+import com.mikelartetxe.contexto.core.ContextDictionary;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+
+// Page faults per query on a memory mapped synthetic model, with the trie
+// written in the order it is built (default) or in locality order. Each query
+// runs on a model mapped right before it, so that every page it touches
+// faults, except for those the kernel maps along with a nearby page that
+// faults (fault-around, 64KB by default on Linux). This is not something JMH
+// measures, so it is a program of its own, which only works on Linux:
+//   java -XX:+AlwaysPreTouch -cp target/benchmarks.jar com.mikelartetxe.contexto.benchmarks.PageFaults [--cold] [model]
+// Pre-touching the heap keeps allocations from faulting during the queries.
+// With --cold, the page cache is dropped before each query (which needs root),
+// so that pages are read from disk and count as major faults.
+public class PageFaults {
+    
+    private static final int QUERIES = 2000;
+    private static final int COLD_QUERIES = 500;
+    private static final int MAPPINGS_PER_GC = 200; // Mappings are only released once collected
+    private static final File STAT = new File("/proc/self/stat");
+    private static final File DROP_CACHES = new File("/proc/sys/vm/drop_caches");
+    
+    public static void main(String args[]) throws IOException {
+        final boolean cold = args.length > 0 && args[0].equals("--cold");
+        final String model = args.length > (cold ? 1 : 0) ? args[args.length - 1] : BenchmarkModels.LARGE;
+        System.out.printf("%-10s %-20s %12s %12s%n", "layout", "queries", "minor/query", "major/query");
+        for (String layout : new String[] {"default", "locality"}) {
+            final File file = BenchmarkModels.get(model, layout,
+                    new BuildOptions().setLocalityOrder(layout.equals("locality")));
+            final QuerySet queries = new QuerySet(ContextDictionary.fromBinaryModel(file));
+            measure(file, layout, "search hits", queries.hits, false, cold);
+            measure(file, layout, "search misses", queries.misses, false, cold);
+            measure(file, layout, "autocomplete deep", queries.deepPrefixes, true, cold);
+        }
+    }
+    
+    private static void measure(File file, String layout, String name,
+            String queries[], boolean autocomplete, boolean cold) throws IOException {
+        long minor = 0, major = 0;
+        final int n = Math.min(cold ? COLD_QUERIES : QUERIES, queries.length);
+        for (int i = 0; i < n; i++) {
+            if (cold || i % MAPPINGS_PER_GC == 0) System.gc(); // Mapped pages are not dropped
+            final ContextDictionary dictionary = ContextDictionary.fromBinaryModel(file);
+            if (cold) {
+                Files.write(DROP_CACHES.toPath(), "1".getBytes(Charset.forName("utf-8")));
+            }
+            
+            // The faults of reading the counters themselves are discounted
+            final long start[] = faults(), before[] = faults();
+            if (autocomplete) {
+                dictionary.autocomplete(queries[i]);
+            } else {
+                dictionary.search(queries[i]);
+            }
+            final long after[] = faults();
+            minor += (after[0] - before[0]) - (before[0] - start[0]);
+            major += (after[1] - before[1]) - (before[1] - start[1]);
+        }
+        System.out.printf("%-10s %-20s %12.2f %12.2f%n", layout, name, (double)minor / n, (double)major / n);
+    }
+    
+    // Minor and major page faults of the process so far, which are the 10th
+    // and 12th fields of /proc/self/stat (the 2nd one may contain spaces)
+    private static long[] faults() throws IOException {
+        final String stat = new String(Files.readAllBytes(STAT.toPath()), Charset.forName("utf-8"));
+        final String fields[] = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        return new long[] {Long.parseLong(fields[7]), Long.parseLong(fields[9])};
+    }
+    
+}
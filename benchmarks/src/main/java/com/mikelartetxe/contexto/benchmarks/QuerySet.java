@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.ContextDictionary;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+
+// Queries of each kind for a given dictionary. They are obtained through the
+// public API by completing short prefixes, so that they work with any model.
+class QuerySet {
+    
+    private static final int MAX_QUERIES = 10000;
+    private static final int DEEP_PREFIX_MIN_LENGTH = 8;
+    private static final String MISS_SUFFIX = " \u0001";
+    
+    // Phrases in the dictionary
+    public final String hits[];
+    
+    // Queries that match a deep node of the trie, but no phrase
+    public final String misses[];
+    
+    // One or two characters, matching nodes close to the root
+    public final String shortPrefixes[];
+    
+    // Long prefixes of phrases, matching nodes deep in the trie
+    public final String deepPrefixes[];
+    
+    public QuerySet(ContextDictionary dictionary) {
+        final List<String> prefixes = new ArrayList<>();
+        for (char a = ' '; a < 127; a++) {
+            prefixes.add(String.valueOf(a));
+            for (char b = 'a'; b <= 'z'; b++) {
+                prefixes.add(String.valueOf(a) + b);
+            }
+        }
+        final List<String> shortPrefixes = new ArrayList<>();
+        final Set<String> hits = new LinkedHashSet<>();
+        for (String prefix : prefixes) {
+            final List<String> completions = dictionary.autocomplete(prefix);
+            if (!completions.isEmpty()) shortPrefixes.add(prefix);
+            hits.addAll(completions);
+        }
+        if (hits.isEmpty()) {
+            // Models with no ASCII phrases at all
+            hits.addAll(dictionary.autocomplete("", MAX_QUERIES, 0));
+            shortPrefixes.add("");
+        }
+        
+        final List<String> misses = new ArrayList<>();
+        final List<String> deepPrefixes = new ArrayList<>();
+        for (String hit : hits) {
+            if (dictionary.search(hit + MISS_SUFFIX).isEmpty()) misses.add(hit + MISS_SUFFIX);
+            if (hit.length() >= DEEP_PREFIX_MIN_LENGTH) deepPrefixes.add(hit.substring(0, hit.length() - 2));
+        }
+        if (deepPrefixes.isEmpty()) deepPrefixes.addAll(hits);
+        
+        this.hits = shuffle(new ArrayList<>(hits));
+        this.misses = shuffle(misses);
+        this.shortPrefixes = shuffle(shortPrefixes);
+        this.deepPrefixes = shuffle(deepPrefixes);
+    }
+    
+    private static String[] shuffle(List<String> queries) {
+        Collections.shuffle(queries, new Random(1));
+        final List<String> res = queries.size() > MAX_QUERIES ? queries.subList(0, MAX_QUERIES) : queries;
+        return res.toArray(new String[res.size()]);
+    }
+    
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.benchmarks;
+
+import com.mikelartetxe.contexto.core.BuildOptions;
+import com.mikelartetxe.contexto.core.ContextDictionary;
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+// Synthetic model built with phrase and translation strings stored as they
+// are (literal), as suffixes of the prefix they share with the source phrase
+// (prefixes), or also as references to the corpus bytes of their examples
+// (references), with corpora compressed in blocks of the given size or not.
+// The size of the model with respect to the literal one is printed when it
+// is built.
+@State(Scope.Benchmark)
+public class StringState {
+    
+    @Param({BenchmarkModels.SMALL, BenchmarkModels.LARGE})
+    public String model;
+    
+    @Param({"literal", "prefixes", "references"})
+    public String strings;
+    
+    @Param({"0", "16384"})
+    public int corpusBlockSize;
+    
+    public ContextDictionary dictionary;
+    public QuerySet queries;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final File file = BenchmarkModels.get(model, strings + "-blocks-" + corpusBlockSize, options(strings));
+        final File literal = BenchmarkModels.get(model, "literal-blocks-" + corpusBlockSize, options("literal"));
+        System.out.printf("%nModel size: %d bytes (%.1f%% of the model with literal strings)%n",
+                file.length(), 100.0 * file.length() / literal.length());
+        dictionary = ContextDictionary.fromBinaryModel(file);
+        queries = new QuerySet(dictionary);
+    }
+    
+    private BuildOptions options(String strings) {
+        final BuildOptions options = new BuildOptions().setCorpusBlockSize(corpusBlockSize);
+        if (strings.equals("prefixes")) {
+            options.setSharedPrefixes(true);
+        } else if (strings.equals("references")) {
+            options.setSharedPrefixes(true).setStringReferences(true);
+        } else if (!strings.equals("literal")) {
+            throw new IllegalArgumentException("Unknown string encoding: " + strings);
+        }
+        return options;
+    }
+    
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.File;
+
+// Options for building a binary model with ContextDictionary.buildContextDictionary
+public class BuildOptions {
+    
+    private int topDescendants = InternalNode.DEFAULT_TOP_DESCENDANTS;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long sortMemory = Runtime.getRuntime().maxMemory() / 4;
+    private File tempDirectory = null;
+    private boolean reverseAlignment = false;
+    private int corpusBlockSize = 0;
+    private boolean stringReferences = false;
+    private boolean sharedPrefixes = false;
+    private boolean localityOrder = false;
+    private boolean shard = false;
+    
+    public int getTopDescendants() {
+        return topDescendants;
+    }
+    
+    // Number of phrases with the highest weight stored in each node. Larger
+    // values make the model bigger, but autocomplete queries asking for up to
+    // this many suggestions are answered without searching the trie.
+    public BuildOptions setTopDescendants(int topDescendants) {
+        if (topDescendants < 1) {
+            throw new IllegalArgumentException("At least one top descendant must be stored");
+        }
+        this.topDescendants = topDescendants;
+        return this;
+    }
+    
+    public int getThreads() {
+        return threads;
+    }
+    
+    // Number of threads used to parse the phrase table, while the trie is
+    // built on the calling thread (defaults to the number of processors)
+    public BuildOptions setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.threads = threads;
+        return this;
+    }
+    
+    public long getSortMemory() {
+        return sortMemory;
+    }
+    
+    // Memory in bytes used to sort phrase pairs before spilling them to disk
+    // (defaults to a quarter of the maximum heap size)
+    public BuildOptions setSortMemory(long sortMemory) {
+        if (sortMemory <= 0) {
+            throw new IllegalArgumentException("The memory for sorting must be positive");
+        }
+        this.sortMemory = sortMemory;
+        return this;
+    }
+    
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+    
+    // Directory for the sorted runs of phrase pairs, the nodes of the trie and
+    // the copy of the corpus, or null for the default temporary directory of
+    // the system
+    public BuildOptions setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+        return this;
+    }
+    
+    public boolean getReverseAlignment() {
+        return reverseAlignment;
+    }
+    
+    // Whether word alignments are given as trg-src instead of src-trg when
+    // building from a word aligned corpus
+    public BuildOptions setReverseAlignment(boolean reverseAlignment) {
+        this.reverseAlignment = reverseAlignment;
+        return this;
+    }
+    
+    public int getCorpusBlockSize() {
+        return corpusBlockSize;
+    }
+    
+    // Compress the corpora in blocks of whole sentences of about the given
+    // number of bytes, or store them as they are if 0 (the default). Larger
+    // blocks compress better, but more has to be decompressed per example.
+    public BuildOptions setCorpusBlockSize(int corpusBlockSize) {
+        if (corpusBlockSize < 0) {
+            throw new IllegalArgumentException("Negative block size");
+        }
+        this.corpusBlockSize = corpusBlockSize;
+        return this;
+    }
+    
+    public boolean getStringReferences() {
+        return stringReferences;
+    }
+    
+    // Store phrase and translation strings as references to the corpus bytes
+    // of one of their examples when they match them. This makes the model
+    // smaller, but reading these strings then needs to read the corpus. A
+    // copy of the corpus is kept in the temporary directory during the build.
+    public BuildOptions setStringReferences(boolean stringReferences) {
+        this.stringReferences = stringReferences;
+        return this;
+    }
+    
+    public boolean getSharedPrefixes() {
+        return sharedPrefixes;
+    }
+    
+    // Store translations that start like their source phrase (e.g. names and
+    // numbers) as the rest of the string after the prefix they share with it
+    public BuildOptions setSharedPrefixes(boolean sharedPrefixes) {
+        this.sharedPrefixes = sharedPrefixes;
+        return this;
+    }
+    
+    public boolean getLocalityOrder() {
+        return localityOrder;
+    }
+    
+    // Write the nodes of the trie so that those visited by the same lookup
+    // share pages, instead of in the post-order they are built in. Either
+    // way, they are kept in the temporary directory until the trie is
+    // complete, and written in a section of their own after the phrases. The
+    // locality order needs about 32 bytes of heap per node to do so.
+    public BuildOptions setLocalityOrder(boolean localityOrder) {
+        this.localityOrder = localityOrder;
+        return this;
+    }
+    
+    public boolean getShard() {
+        return shard;
+    }
+    
+    // Build one shard of a model, to be merged with the others through
+    // ContextDictionary.mergeBinaryModels. Every translation of every phrase
+    // is kept with its sample of examples instead of grouping the least
+    // frequent ones in $OTHERS$, so that merging the shards gives the same
+    // translations and counts as building the model from all the data. Only
+    // for models built from phrase pairs or a word aligned corpus.
+    public BuildOptions setShard(boolean shard) {
+        this.shard = shard;
+        return this;
+    }
+    
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+
+// Summary of the build of a binary model with ContextDictionary.buildContextDictionary
+public class BuildStats {
+    
+    private final long phrases;
+    private final long nodes;
+    private final long peakTrieMemoryBytes;
+    private final long phrasePairs;
+    private final int sortRuns;
+    private final long peakSortMemoryBytes;
+    
+    BuildStats(long phrases, long nodes, long peakTrieMemoryBytes,
+            long phrasePairs, int sortRuns, long peakSortMemoryBytes) {
+        this.phrases = phrases;
+        this.nodes = nodes;
+        this.peakTrieMemoryBytes = peakTrieMemoryBytes;
+        this.phrasePairs = phrasePairs;
+        this.sortRuns = sortRuns;
+        this.peakSortMemoryBytes = peakSortMemoryBytes;
+    }
+    
+    public long getPhrases() {
+        return phrases;
+    }
+    
+    public long getNodes() {
+        return nodes;
+    }
+    
+    // Approximate peak heap memory used by the nodes of the trie being built
+    // and by their layout in the model (see BuildOptions.setLocalityOrder)
+    public long getPeakTrieMemoryBytes() {
+        return peakTrieMemoryBytes;
+    }
+    
+    // Phrase pairs sorted and merged into phrases, if built from phrase pairs
+    public long getPhrasePairs() {
+        return phrasePairs;
+    }
+    
+    // Sorted runs spilled to disk, if built from phrase pairs
+    public int getSortRuns() {
+        return sortRuns;
+    }
+    
+    // Approximate peak heap memory used by the phrase pairs being sorted
+    public long getPeakSortMemoryBytes() {
+        return peakSortMemoryBytes;
+    }
+    
+    @Override
+    public String toString() {
+        return "BuildStats{phrases=" + phrases + ", nodes=" + nodes +
+                ", peakTrieMemoryBytes=" + peakTrieMemoryBytes + ", phrasePairs=" + phrasePairs +
+                ", sortRuns=" + sortRuns + ", peakSortMemoryBytes=" + peakSortMemoryBytes + "}";
+    }
+    
+}
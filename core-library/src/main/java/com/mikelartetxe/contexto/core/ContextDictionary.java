@@ -17,180 +17,702 @@
 
 package com.mikelartetxe.contexto.core;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.List;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.zip.CRC32;
 
 
-public class ContextDictionary {
+public class ContextDictionary implements Closeable {
     
     private static final Charset CHARSET = Charset.forName("utf-8");
     
-    private final InternalNode root;
-    private final InternalDataReader data;
+    // Rough heap usage of cached results
+    private static final int CACHE_ENTRY_BYTES = 128;
+    private static final int CACHE_STRING_BYTES = 56;
+    private static final int CACHE_TRANSLATION_BYTES = 120;
+    private static final int CACHE_EXAMPLE_BYTES = 64;
+    
+    private final long rootPointer;
+    private final InternalDataReader index; // Nodes of the trie
+    private final InternalDataReader data; // Phrases and translations
     private final InternalCorpus srcCorpus;
     private final InternalCorpus trgCorpus;
+    private final InternalHotIndex hotIndex;
+    private final InternalResultCache resultCache;
+    private final List<InternalDataReader> readers = new ArrayList<>(); // To unmap them on close
+    private final long checksum; // -1 if not stored in the model
+    private String versionId;
+    
+    private ContextDictionary(FileChannel fc, DictionaryOptions options) throws IOException {
+        final int version = InternalFormat.readVersion(fc);
+        final boolean inMemory = options.isInMemory();
+        final InternalDataReader srcData, trgData;
+        final long srcCorpusPointer, trgCorpusPointer;
+        if (version < InternalFormat.V7) {
+            // Everything is interleaved, and the pointers are at the end
+            index = data = new InternalDataReader(InternalDataReader.load(fc, inMemory));
+            srcData = trgData = options.getLoadCorpora() ? data : null;
+            final long size = data.size();
+            rootPointer = data.seek(size - 24).readPointer();
+            srcCorpusPointer = data.seek(size - 16).readPointer();
+            trgCorpusPointer = data.seek(size - 8).readPointer();
+            checksum = -1;
+        } else {
+            final InternalSections sections = InternalSections.read(fc);
+            if (!options.getLoadCorpora() && sections.hasFlag(InternalSections.CORPUS_STRINGS)) {
+                throw new IllegalArgumentException("The strings of this model refer to its corpora, so they must be loaded");
+            }
+            index = sections.load(fc, InternalSections.INDEX, version, inMemory || options.isIndexInMemory());
+            data = sections.load(fc, InternalSections.PHRASES, version, inMemory);
+            srcData = options.getLoadCorpora() ? sections.load(fc, InternalSections.SRC_CORPUS, version, inMemory) : null;
+            trgData = options.getLoadCorpora() ? sections.load(fc, InternalSections.TRG_CORPUS, version, inMemory) : null;
+            rootPointer = sections.getEntry(InternalSections.INDEX);
+            srcCorpusPointer = sections.getEntry(InternalSections.SRC_CORPUS);
+            trgCorpusPointer = sections.getEntry(InternalSections.TRG_CORPUS);
+            checksum = sections.getChecksum();
+        }
+        final InternalBlockCache corpusCache = options.getCorpusCacheMaxBytes() > 0 ?
+                new InternalBlockCache(options.getCorpusCacheMaxBytes()) :
+                null;
+        for (InternalDataReader reader : Arrays.asList(index, data, srcData, trgData)) {
+            if (reader != null && !readers.contains(reader)) readers.add(reader); // Shared before V7
+        }
+        srcCorpus = srcData == null ? null : srcData.seek(srcCorpusPointer).readCorpus(corpusCache);
+        trgCorpus = trgData == null ? null : trgData.seek(trgCorpusPointer).readCorpus(corpusCache);
+        hotIndex = options.getHotIndexLevels() > 0 ?
+                InternalHotIndex.build(index, rootPointer, options.getHotIndexLevels(), options.getHotIndexMaxBytes()) :
+                null;
+        resultCache = options.getResultCacheMaxBytes() > 0 ?
+                new InternalResultCache(options.getResultCacheMaxBytes()) :
+                null;
+    }
+    
+    // Whether the corpora were loaded, which examples are read from (see
+    // DictionaryOptions.setLoadCorpora)
+    public boolean hasCorpora() {
+        return srcCorpus != null && trgCorpus != null;
+    }
     
-    private ContextDictionary(ByteBuffer buffer) {
-        data = new InternalDataReader(buffer);
-        final int size = buffer.capacity();
-        long rootPointer = data.seek(size - 24).readPointer();
-        long srcCorpusPointer = data.seek(size - 16).readPointer();
-        long trgCorpusPointer = data.seek(size - 8).readPointer();
-        root = data.seek(rootPointer).readNode();
-        srcCorpus = data.seek(srcCorpusPointer).readCorpus();
-        trgCorpus = data.seek(trgCorpusPointer).readCorpus();
+    private InternalNodeCursor rootCursor() {
+        return new InternalNodeCursor(index, hotIndex).moveToRoot(rootPointer);
     }
     
     public List<Translation> search(String query) {
-        final InternalPhrase phrase = root.search(data, query.getBytes(CHARSET));
-        if (phrase == null) return Collections.EMPTY_LIST;
-        int total = 0;
-        for (InternalTranslation translation : phrase.getTranslations()) {
-            total += translation.getNumberOfOccurrences();
+        return search(query, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+    
+    // Returns at most maxTranslations translations with at most maxExamples
+    // examples each. Translations and examples are decoded lazily, so the
+    // ones beyond these limits are never read.
+    public List<Translation> search(String query, int maxTranslations, int maxExamples) {
+        checkSearchArguments(maxTranslations, maxExamples);
+        final byte q[] = query.getBytes(CHARSET);
+        if (resultCache == null) {
+            return search(q, maxTranslations, maxExamples);
         }
-        final List<Translation> res = new ArrayList<>(phrase.getTranslations().size());
-        for (InternalTranslation translation : phrase.getTranslations()) {
-            res.add(new TranslationImpl(translation, total));
+        final InternalResultCache.Key key =
+                InternalResultCache.key(InternalResultCache.SEARCH, q, maxTranslations, maxExamples);
+        List<Translation> res = cachedResults(key);
+        if (res == null) {
+            res = search(q, maxTranslations, maxExamples);
+            cacheSearchResults(key, q, res);
         }
         return res;
     }
     
+    public List<List<Translation>> searchAll(Collection<String> queries) {
+        return searchAll(queries, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+    
+    // Same as calling search for each query, but all the queries share a
+    // single walk of the trie. Results are in the order of the given queries.
+    public List<List<Translation>> searchAll(Collection<String> queries, int maxTranslations, int maxExamples) {
+        checkSearchArguments(maxTranslations, maxExamples);
+        final byte q[][] = encode(queries);
+        final List<List<Translation>> res = new ArrayList<>(Collections.<List<Translation>>nCopies(q.length, null));
+        final InternalResultCache.Key keys[] = new InternalResultCache.Key[q.length];
+        int missing = 0;
+        for (int i = 0; i < q.length; i++) {
+            if (resultCache != null) {
+                keys[i] = InternalResultCache.key(InternalResultCache.SEARCH, q[i], maxTranslations, maxExamples);
+                res.set(i, this.<Translation>cachedResults(keys[i]));
+            }
+            if (res.get(i) == null) q[missing++] = q[i];
+        }
+        
+        // Look up the queries that were not cached (compacted at the beginning of q)
+        final long nodes[] = InternalBatchLookup.lookup(
+                new InternalNodeCursor(index), rootPointer, Arrays.copyOf(q, missing), true);
+        final InternalNodeCursor cursor = new InternalNodeCursor(index);
+        for (int i = 0, j = 0; i < res.size(); i++) {
+            if (res.get(i) != null) continue;
+            final long node = nodes[j++];
+            res.set(i, node == 0 ?
+                    Collections.<Translation>emptyList() :
+                    search(q[j-1], cursor.moveTo(node).getPhrasePointer(), maxTranslations, maxExamples));
+            if (resultCache != null) cacheSearchResults(keys[i], q[j-1], res.get(i));
+        }
+        return Collections.unmodifiableList(res);
+    }
+    
+    private static void checkSearchArguments(int maxTranslations, int maxExamples) {
+        if (maxTranslations < 0 || maxExamples < 0) {
+            throw new IllegalArgumentException("Negative number of translations or examples");
+        }
+    }
+    
+    private List<Translation> search(byte query[], int maxTranslations, int maxExamples) {
+        final InternalNodeCursor cursor = rootCursor();
+        final long ptr = cursor.descend(query, true) ? cursor.getPhrasePointer() : 0;
+        return search(query, ptr, maxTranslations, maxExamples);
+    }
+    
+    // The query is the string of the phrase, which translations might share
+    // a prefix with
+    private List<Translation> search(byte query[], long phrasePointer, int maxTranslations, int maxExamples) {
+        if (phrasePointer == 0) return Collections.emptyList();
+        final long translationPointers[] = data.seek(phrasePointer).readTranslationPointers();
+        final long occurrences[] = new long[translationPointers.length];
+        long total = 0;
+        for (int i = 0; i < translationPointers.length; i++) {
+            occurrences[i] = InternalTranslation.readNumberOfOccurrences(data.seek(translationPointers[i]));
+            total += occurrences[i];
+        }
+        final int n = Math.min(translationPointers.length, maxTranslations);
+        final List<Translation> res = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            res.add(new TranslationImpl(query, translationPointers[i], occurrences[i], total, maxExamples));
+        }
+        return Collections.unmodifiableList(res);
+    }
+    
+    // Results are cached as unmodifiable lists, of translations or strings
+    // depending on the type of the key
+    @SuppressWarnings("unchecked")
+    private <T> List<T> cachedResults(InternalResultCache.Key key) {
+        return (List<T>)resultCache.get(key);
+    }
+    
+    private void cacheSearchResults(InternalResultCache.Key key, byte query[], List<Translation> res) {
+        // Decode everything before sharing the results with other threads.
+        // Without the corpora there are no examples to decode, and asking for
+        // them fails just as it does without the cache.
+        long weight = CACHE_ENTRY_BYTES + query.length;
+        for (Translation translation : res) {
+            weight += CACHE_TRANSLATION_BYTES + 2 * translation.getTranslation().length();
+            if (hasCorpora()) weight += CACHE_EXAMPLE_BYTES * translation.getExamples().size();
+        }
+        resultCache.put(key, res, weight);
+    }
+    
+    // Returns the top descendants stored in the model for the query
     public List<String> autocomplete(String query) {
-        return root.autocomplete(data, query.getBytes(CHARSET));
+        return cachedAutocomplete(query, -1, 0);
+    }
+    
+    // Returns the suggestions ranked in [offset, offset+k). These are served
+    // from the top descendants stored in the model if there are enough of them
+    // and searched for in the trie otherwise.
+    public List<String> autocomplete(String query, int k, int offset) {
+        checkAutocompleteArguments(k, offset);
+        return cachedAutocomplete(query, k, offset);
+    }
+    
+    public List<List<String>> autocompleteAll(Collection<String> queries) {
+        return cachedAutocompleteAll(queries, -1, 0);
+    }
+    
+    // Same as calling autocomplete for each query, but all the queries share
+    // a single walk of the trie. Results are in the order of the given queries.
+    public List<List<String>> autocompleteAll(Collection<String> queries, int k, int offset) {
+        checkAutocompleteArguments(k, offset);
+        return cachedAutocompleteAll(queries, k, offset);
+    }
+    
+    private static void checkAutocompleteArguments(int k, int offset) {
+        if (k < 0 || offset < 0) {
+            throw new IllegalArgumentException("Negative number of suggestions or offset");
+        }
+    }
+    
+    // A negative k stands for all the stored top descendants
+    private List<String> cachedAutocomplete(String query, int k, int offset) {
+        final byte q[] = query.getBytes(CHARSET);
+        if (resultCache == null) {
+            return autocomplete(q, k, offset);
+        }
+        final InternalResultCache.Key key = InternalResultCache.key(InternalResultCache.AUTOCOMPLETE, q, k, offset);
+        List<String> res = cachedResults(key);
+        if (res == null) {
+            res = autocomplete(q, k, offset);
+            cacheAutocompleteResults(key, q, res);
+        }
+        return res;
+    }
+    
+    private List<List<String>> cachedAutocompleteAll(Collection<String> queries, int k, int offset) {
+        final byte q[][] = encode(queries);
+        final List<List<String>> res = new ArrayList<>(Collections.<List<String>>nCopies(q.length, null));
+        final InternalResultCache.Key keys[] = new InternalResultCache.Key[q.length];
+        int missing = 0;
+        for (int i = 0; i < q.length; i++) {
+            if (resultCache != null) {
+                keys[i] = InternalResultCache.key(InternalResultCache.AUTOCOMPLETE, q[i], k, offset);
+                res.set(i, this.<String>cachedResults(keys[i]));
+            }
+            if (res.get(i) == null) q[missing++] = q[i];
+        }
+        
+        // Look up the queries that were not cached (compacted at the beginning of q)
+        final long nodes[] = InternalBatchLookup.lookup(
+                new InternalNodeCursor(index), rootPointer, Arrays.copyOf(q, missing), false);
+        final InternalNodeCursor cursor = new InternalNodeCursor(index);
+        for (int i = 0, j = 0; i < res.size(); i++) {
+            if (res.get(i) != null) continue;
+            final long node = nodes[j++];
+            res.set(i, node == 0 ? Collections.<String>emptyList() : autocomplete(cursor.moveTo(node), k, offset));
+            if (resultCache != null) cacheAutocompleteResults(keys[i], q[j-1], res.get(i));
+        }
+        return Collections.unmodifiableList(res);
+    }
+    
+    private List<String> autocomplete(byte query[], int k, int offset) {
+        final InternalNodeCursor cursor = rootCursor();
+        if (!cursor.descend(query, false)) return Collections.emptyList();
+        return autocomplete(cursor, k, offset);
+    }
+    
+    // Completes the query matched by the node the cursor is at
+    private List<String> autocomplete(InternalNodeCursor cursor, int k, int offset) {
+        final int stored = cursor.getTopDescendantLength();
+        final int to = k < 0 ? stored : (int)Math.min((long)offset + k, Integer.MAX_VALUE);
+        if (to <= stored) {
+            final List<String> res = new ArrayList<>(Math.max(0, to - offset));
+            for (int i = 0; i < to; i++) {
+                final long ptr = cursor.nextTopDescendant();
+                if (i >= offset) res.add(data.seek(ptr).readPhraseString(srcCorpus));
+            }
+            return Collections.unmodifiableList(res);
+        }
+        final long pointers[] = InternalTopKSearch.search(index, data, cursor, offset, to);
+        final List<String> res = new ArrayList<>(pointers.length);
+        for (long ptr : pointers) {
+            res.add(data.seek(ptr).readPhraseString(srcCorpus));
+        }
+        return Collections.unmodifiableList(res);
+    }
+    
+    // Suggestions for the query in the order autocomplete returns them, read
+    // one at a time. The result cache is not used. This is how
+    // SegmentedDictionary merges the suggestions of its segments.
+    Suggestions suggestions(String query) {
+        final InternalNodeCursor cursor = rootCursor();
+        return new Suggestions(cursor.descend(query.getBytes(CHARSET), false) ? cursor : null);
+    }
+    
+    // Suggestions stored in the root, which are as many as in any other node
+    int getStoredSuggestions() {
+        return rootCursor().getTopDescendantLength();
+    }
+    
+    // Pointer to the phrase, or 0 if it is not in the dictionary
+    long getPhrasePointer(String phrase) {
+        final InternalNodeCursor cursor = rootCursor();
+        return cursor.descend(phrase.getBytes(CHARSET), true) ? cursor.getPhrasePointer() : 0;
+    }
+    
+    long getPhraseWeight(long pointer) {
+        return data.seek(pointer).readPhraseWeight();
+    }
+    
+    private void cacheAutocompleteResults(InternalResultCache.Key key, byte query[], List<String> res) {
+        long weight = CACHE_ENTRY_BYTES + query.length;
+        for (String s : res) {
+            weight += CACHE_STRING_BYTES + 2 * s.length();
+        }
+        resultCache.put(key, res, weight);
+    }
+    
+    private static byte[][] encode(Collection<String> queries) {
+        final byte res[][] = new byte[queries.size()][];
+        int i = 0;
+        for (String query : queries) {
+            res[i++] = query.getBytes(CHARSET);
+        }
+        return res;
+    }
+    
+    // The following give access to the trie, the phrases and the corpora as
+    // they are stored, for InternalModelMerger to read the whole model
+    
+    InternalNodeCursor indexCursor() {
+        return new InternalNodeCursor(index).moveTo(rootPointer);
+    }
+    
+    InternalPhrase readPhrase(long pointer) {
+        return InternalPhrase.read(data.seek(pointer), srcCorpus, trgCorpus);
+    }
+    
+    InternalCorpus getSrcCorpus() {
+        return srcCorpus;
+    }
+    
+    InternalCorpus getTrgCorpus() {
+        return trgCorpus;
+    }
+    
+    // Identifies the contents of the model, so that results can be cached
+    // for as long as it does not change. It is the CRC-32 of the model stored
+    // in it when built, or computed from everything that was loaded for
+    // models built before that, which reads all of it the first time (see
+    // hasStoredVersionId).
+    public synchronized String getVersionId() {
+        if (versionId == null) {
+            long crc = checksum;
+            if (crc < 0) {
+                final CRC32 computed = new CRC32();
+                for (InternalDataReader reader : readers) {
+                    reader.updateChecksum(computed);
+                }
+                crc = computed.getValue();
+            }
+            versionId = String.format("%08x", crc);
+        }
+        return versionId;
+    }
+    
+    // Whether getVersionId is stored in the model, so that it does not need
+    // to read all of it
+    public boolean hasStoredVersionId() {
+        return checksum >= 0;
+    }
+    
+    // Unmaps the model right away instead of when the dictionary is garbage
+    // collected, e.g. to replace it with a new version of the model. Neither
+    // the dictionary nor the translations and examples returned by it may be
+    // used afterwards, or the JVM might crash, so it is up to the caller to
+    // make sure that no query is running.
+    @Override
+    public void close() {
+        for (InternalDataReader reader : readers) {
+            reader.unmap();
+        }
+    }
+    
+    // Returns null if the hot index is disabled
+    public HotIndexStats getHotIndexStats() {
+        return hotIndex == null ? null : hotIndex.getStats();
+    }
+    
+    // Returns null if the result cache is disabled
+    public ResultCacheStats getResultCacheStats() {
+        return resultCache == null ? null : resultCache.getStats();
     }
     
     public static ContextDictionary fromBinaryModel(File f) throws IOException {
-        return fromBinaryModel(f, false);
+        return fromBinaryModel(f, new DictionaryOptions());
     }
     
     public static ContextDictionary fromBinaryModel(File f, boolean inMemory) throws IOException {
-        if (inMemory) {
-            final byte bytes[] = Files.readAllBytes(Paths.get(f.getAbsolutePath()));
-            return new ContextDictionary(ByteBuffer.wrap(bytes));
-        } else {
-            final FileChannel fc = new RandomAccessFile(f, "r").getChannel();
-            final ByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-            return new ContextDictionary(buffer);
+        return fromBinaryModel(f, new DictionaryOptions().setInMemory(inMemory));
+    }
+    
+    public static ContextDictionary fromBinaryModel(File f, DictionaryOptions options) throws IOException {
+        try (final FileChannel fc = new RandomAccessFile(f, "r").getChannel()) {
+            return new ContextDictionary(fc, options);
         }
     }
     
-    public static void buildContextDictionary(
+    public static BuildStats buildContextDictionary(
             InputStream phrasesInputStream, InputStream srcInputStream,
             InputStream trgInputStream, OutputStream os) throws IOException {
-        final InternalDataWriter writer = new InternalDataWriter(os);
-        writer.writeByte(0); // Make sure that 0 is a safe null pointer
-        
-        final long srcCorpusPointer = InternalCorpus.write(srcInputStream, writer);
-        final long trgCorpusPointer = InternalCorpus.write(trgInputStream, writer);
-        
-        final BufferedReader in = new BufferedReader(new InputStreamReader(phrasesInputStream));
-        String line;
-        final Deque<InternalNode.Builder> stack = new ArrayDeque<>();
-        stack.push(new InternalNode.Builder(new byte[]{}));
-        while ((line = in.readLine()) != null) {
-            final String fields[] = line.split("\t");
-            final InternalPhrase phrase = InternalPhrase.parse(line);
-            final long phrasePointer = writer.writePhrase(phrase);
-            final long phraseWeight = phrase.getWeight();
-            final byte src[] = fields[0].getBytes(CHARSET);
-            final byte top[] = stack.peek().getString();
-            final int minLength = src.length < top.length ? src.length : top.length;
-            int matchLength = minLength;
-            for (int i = 0; i < minLength; i++) {
-                final int src_i = src[i] & 0xFF; // to unsigned int
-                final int top_i = top[i] & 0xFF; // to unsigned int
-                if (src_i < top_i) {
-                    throw new RuntimeException("Unsorted input");
-                } else if (src_i > top_i) {
-                    matchLength = i;
-                    break;
+        return buildContextDictionary(phrasesInputStream, srcInputStream, trgInputStream, os, new BuildOptions());
+    }
+    
+    public static BuildStats buildContextDictionary(
+            InputStream phrasesInputStream, InputStream srcInputStream,
+            InputStream trgInputStream, OutputStream os, BuildOptions options) throws IOException {
+        if (options.getShard()) {
+            throw new IllegalArgumentException("Phrase tables are already merged, so shards must be built from phrase pairs");
+        }
+        final InternalDataWriter writer = new InternalDataWriter(os, true);
+        InternalFormat.writeHeader(writer); // Also makes sure that 0 is a safe null pointer
+        
+        final InternalSections sections = sections(options);
+        final InternalTrieBuilder trie;
+        final long peakTrieMemory;
+        try (final InternalTrieLayout layout = new InternalTrieLayout(options.getTempDirectory(), options.getLocalityOrder())) {
+            trie = new InternalTrieBuilder(layout, options.getTopDescendants());
+            try (final InternalCorpusCopy corpus = copyCorpus(srcInputStream, trgInputStream, options)) {
+                writeCorpora(srcInputStream, trgInputStream, corpus, writer, sections, options);
+                
+                sections.begin(writer, InternalSections.PHRASES);
+                try (final InternalPhraseReader in = new InternalPhraseReader(
+                        phrasesInputStream, options.getThreads(), stringEncoder(corpus, options))) {
+                    InternalPhraseReader.Block block;
+                    while ((block = in.next()) != null) {
+                        for (int i = 0; i < block.size(); i++) {
+                            final long phrasePointer = block.write(i, writer);
+                            trie.add(block.getString(i), phrasePointer, block.getWeight(i));
+                        }
+                    }
                 }
             }
-            if (matchLength == minLength && top.length >= src.length) {
-                throw new RuntimeException("Unsorted input");
-            }
-            
-            InternalNode.Builder newNode = new InternalNode.Builder(src);
-            newNode.setPhrase(phrasePointer, phraseWeight);
-            while (true) {
-                InternalNode.Builder node = stack.pop();
-                InternalNode.Builder prevNode = stack.peek();
-                int nodeLength = node.length();
-                int prevNodeLength = prevNode == null ? -1 : prevNode.length();
-                if (prevNodeLength > matchLength) {
-                    prevNode.addChild(node, prevNode.length(), writer);
-                } else if (prevNodeLength == matchLength) {
-                    prevNode.addChild(node, prevNode.length(), writer);
-                    stack.push(newNode);
-                    break;
-                } else if (nodeLength == matchLength) {
-                    stack.push(node);
-                    stack.push(newNode);
-                    break;
-                } else {
-                    InternalNode.Builder parent = new InternalNode.Builder(Arrays.copyOf(src, matchLength));
-                    parent.addChild(node, matchLength, writer);
-                    stack.push(parent);
-                    stack.push(newNode);
-                    break;
-                }
+            writeIndex(trie, layout, writer, sections);
+            peakTrieMemory = trie.getPeakMemoryBytes() + layout.getPeakMemoryBytes();
+        }
+        return new BuildStats(trie.getPhrases(), trie.getNodes(), peakTrieMemory, 0, 0, 0);
+    }
+    
+    // Builds a model from unsorted phrase pairs, with one per line:
+    //   src \t trg \t sentenceId:srcStart:srcEnd:trgStart:trgEnd
+    // Pairs are sorted on disk and merged into phrases as in merge_sorted.py.
+    public static BuildStats buildContextDictionaryFromPhrasePairs(
+            InputStream phrasePairsInputStream, InputStream srcInputStream,
+            InputStream trgInputStream, OutputStream os, BuildOptions options) throws IOException {
+        final InternalLineReader in = new InternalLineReader(phrasePairsInputStream);
+        return buildContextDictionaryFromPhrasePairs(new PhrasePairSource() {
+            @Override
+            public byte[] next() throws IOException {
+                byte line[];
+                while ((line = in.readLine()) != null && line.length == 0);
+                return line;
             }
+        }, srcInputStream, trgInputStream, os, options);
+    }
+    
+    // Builds a model from a word aligned parallel corpus, extracting the
+    // phrase pairs as in extract_phrases.py. The original text is read twice,
+    // to extract the phrase pairs and to store the corpus in the model.
+    // Sentences whose tokenization does not match are skipped with a warning.
+    public static BuildStats buildContextDictionaryFromCorpus(
+            File src, File trg, File srcTok, File trgTok, File alignment,
+            OutputStream os, BuildOptions options) throws IOException {
+        try (final InputStream srcInputStream = new FileInputStream(src);
+                final InputStream trgInputStream = new FileInputStream(trg);
+                final InputStream srcTokInputStream = new FileInputStream(srcTok);
+                final InputStream trgTokInputStream = new FileInputStream(trgTok);
+                final InputStream alignmentInputStream = new FileInputStream(alignment);
+                final InternalPhraseExtractor extractor = new InternalPhraseExtractor(
+                        srcInputStream, trgInputStream, srcTokInputStream, trgTokInputStream, alignmentInputStream,
+                        options.getReverseAlignment(), options.getThreads(), System.err);
+                final InputStream srcCorpusInputStream = new FileInputStream(src);
+                final InputStream trgCorpusInputStream = new FileInputStream(trg)) {
+            return buildContextDictionaryFromPhrasePairs(new PhrasePairSource() {
+                @Override
+                public byte[] next() throws IOException {
+                    return extractor.next();
+                }
+            }, srcCorpusInputStream, trgCorpusInputStream, os, options);
         }
+    }
+    
+    private interface PhrasePairSource {
+        byte[] next() throws IOException;
+    }
+    
+    private static BuildStats buildContextDictionaryFromPhrasePairs(
+            PhrasePairSource phrasePairs, InputStream srcInputStream,
+            InputStream trgInputStream, OutputStream os, BuildOptions options) throws IOException {
+        final InternalDataWriter writer = new InternalDataWriter(os, true);
+        InternalFormat.writeHeader(writer); // Also makes sure that 0 is a safe null pointer
         
-        while (stack.size() > 1) {
-            InternalNode.Builder node = stack.pop();
-            InternalNode.Builder prevNode = stack.peek();
-            prevNode.addChild(node, prevNode.length(), writer);
+        final InternalSections sections = sections(options);
+        final long sortedPairs;
+        final int sortRuns;
+        final long peakSortMemory;
+        final InternalTrieBuilder trie;
+        final long peakTrieMemory;
+        try (final InternalTrieLayout layout = new InternalTrieLayout(options.getTempDirectory(), options.getLocalityOrder())) {
+            trie = new InternalTrieBuilder(layout, options.getTopDescendants());
+            try (final InternalCorpusCopy corpus = copyCorpus(srcInputStream, trgInputStream, options);
+                    final InternalExternalSorter sorter = new InternalExternalSorter(options.getSortMemory(), options.getTempDirectory())) {
+                writeCorpora(srcInputStream, trgInputStream, corpus, writer, sections, options);
+                
+                byte pair[];
+                while ((pair = phrasePairs.next()) != null) {
+                    sorter.add(pair);
+                }
+                sorter.sort();
+                sortedPairs = sorter.size();
+                sortRuns = sorter.getSpilledRuns();
+                peakSortMemory = sorter.getPeakMemoryBytes();
+                final InternalPhrasePairMerger merger = new InternalPhrasePairMerger(sorter, options.getShard());
+                final InternalStringEncoding.Encoder strings = stringEncoder(corpus, options);
+                sections.begin(writer, InternalSections.PHRASES);
+                InternalPhrase phrase;
+                while ((phrase = merger.next()) != null) {
+                    trie.add(phrase.getBytes(), writer.writePhrase(phrase, strings), phrase.getWeight());
+                }
+            }
+            writeIndex(trie, layout, writer, sections);
+            peakTrieMemory = trie.getPeakMemoryBytes() + layout.getPeakMemoryBytes();
+        }
+        return new BuildStats(trie.getPhrases(), trie.getNodes(), peakTrieMemory,
+                sortedPairs, sortRuns, peakSortMemory);
+    }
+    
+    // Merges several models into one, with their corpora concatenated in the
+    // given order, without going through their phrase pairs again. This is an
+    // approximation, as the models only keep the most frequent translations,
+    // unless they are shards (see BuildOptions.setShard). Only the current
+    // phrase of each model is kept in memory besides what the trie builder
+    // needs, so that large models can be merged.
+    public static BuildStats mergeBinaryModels(List<File> models, OutputStream os, BuildOptions options) throws IOException {
+        final List<ContextDictionary> dictionaries = new ArrayList<>(models.size());
+        try {
+            for (File model : models) {
+                dictionaries.add(fromBinaryModel(model));
+            }
+            return mergeDictionaries(dictionaries, os, options);
+        } finally {
+            // Unmapped right away, so that the models can be deleted
+            for (ContextDictionary dictionary : dictionaries) {
+                dictionary.close();
+            }
         }
-        final InternalNode root = stack.pop().build(0);
-        final long rootPointer = writer.writeNode(root);
+    }
+    
+    private static BuildStats mergeDictionaries(List<ContextDictionary> dictionaries,
+            OutputStream os, BuildOptions options) throws IOException {
+        final InternalModelMerger merger = new InternalModelMerger(dictionaries, options.getShard());
+        final InternalDataWriter writer = new InternalDataWriter(os, true);
+        InternalFormat.writeHeader(writer); // Also makes sure that 0 is a safe null pointer
         
-        writer.writePointer(rootPointer);
-        writer.writePointer(srcCorpusPointer);
-        writer.writePointer(trgCorpusPointer);
+        final InternalSections sections = sections(options);
+        final InternalTrieBuilder trie;
+        final long peakTrieMemory;
+        try (final InternalTrieLayout layout = new InternalTrieLayout(options.getTempDirectory(), options.getLocalityOrder())) {
+            trie = new InternalTrieBuilder(layout, options.getTopDescendants());
+            final InputStream srcInputStream = merger.getSrcCorpus(), trgInputStream = merger.getTrgCorpus();
+            try (final InternalCorpusCopy corpus = copyCorpus(srcInputStream, trgInputStream, options)) {
+                writeCorpora(srcInputStream, trgInputStream, corpus, writer, sections, options);
+                
+                final InternalStringEncoding.Encoder strings = stringEncoder(corpus, options);
+                sections.begin(writer, InternalSections.PHRASES);
+                InternalPhrase phrase;
+                while ((phrase = merger.next()) != null) {
+                    trie.add(phrase.getBytes(), writer.writePhrase(phrase, strings), phrase.getWeight());
+                }
+            }
+            writeIndex(trie, layout, writer, sections);
+            peakTrieMemory = trie.getPeakMemoryBytes() + layout.getPeakMemoryBytes();
+        }
+        return new BuildStats(trie.getPhrases(), trie.getNodes(), peakTrieMemory, 0, 0, 0);
+    }
+    
+    // Copies the corpus to a temporary file if strings may refer to it, or
+    // returns null otherwise
+    private static InternalCorpusCopy copyCorpus(InputStream srcInputStream,
+            InputStream trgInputStream, BuildOptions options) throws IOException {
+        return options.getStringReferences() ?
+                new InternalCorpusCopy(srcInputStream, trgInputStream, options.getTempDirectory()) :
+                null;
+    }
+    
+    private static InternalSections sections(BuildOptions options) {
+        final InternalSections sections = new InternalSections();
+        if (options.getStringReferences()) {
+            sections.setFlag(InternalSections.CORPUS_STRINGS);
+        }
+        return sections;
+    }
+    
+    private static void writeCorpora(InputStream srcInputStream, InputStream trgInputStream,
+            InternalCorpusCopy corpus, InternalDataWriter writer, InternalSections sections,
+            BuildOptions options) throws IOException {
+        sections.begin(writer, InternalSections.SRC_CORPUS);
+        sections.end(writer, InternalSections.SRC_CORPUS,
+                writeCorpus(srcInputStream, corpus == null ? null : corpus.getSrc(), writer, options));
+        sections.begin(writer, InternalSections.TRG_CORPUS);
+        sections.end(writer, InternalSections.TRG_CORPUS,
+                writeCorpus(trgInputStream, corpus == null ? null : corpus.getTrg(), writer, options));
+    }
+    
+    // Ends the phrases, which are all written by then, and writes the nodes
+    // of the trie after them followed by the section table with the checksum
+    private static void writeIndex(InternalTrieBuilder trie, InternalTrieLayout layout,
+            InternalDataWriter writer, InternalSections sections) throws IOException {
+        final long root = trie.finish();
+        sections.end(writer, InternalSections.PHRASES, sections.getOffset(InternalSections.PHRASES));
+        sections.begin(writer, InternalSections.INDEX);
+        sections.end(writer, InternalSections.INDEX, layout.finish(root, writer));
+        sections.write(writer);
+        writer.flush();
+    }
+    
+    private static long writeCorpus(InputStream is, InternalCorpus copy,
+            InternalDataWriter writer, BuildOptions options) throws IOException {
+        return copy == null ?
+                InternalCorpus.write(is, writer, options.getCorpusBlockSize()) :
+                InternalCorpus.write(copy, writer, options.getCorpusBlockSize());
+    }
+    
+    private static InternalStringEncoding.Encoder stringEncoder(InternalCorpusCopy corpus, BuildOptions options) {
+        return new InternalStringEncoding.Encoder(
+                corpus == null ? null : corpus.getSrc(),
+                corpus == null ? null : corpus.getTrg(),
+                options.getSharedPrefixes());
     }
     
     private class TranslationImpl implements Translation {
         
-        private final InternalTranslation translation;
-        private final int total;
+        private final byte phrase[];
+        private final long pointer;
+        private final long occurrences, total;
+        private final int maxExamples;
+        private String translation;
+        private List<TranslationExample> examples;
         
-        public TranslationImpl(InternalTranslation translation, int total) {
-            this.translation = translation;
+        public TranslationImpl(byte phrase[], long pointer, long occurrences, long total, int maxExamples) {
+            this.phrase = phrase;
+            this.pointer = pointer;
+            this.occurrences = occurrences;
             this.total = total;
+            this.maxExamples = maxExamples;
         }
         
         @Override
         public String getTranslation() {
-            return translation.getString();
+            if (translation == null) {
+                translation = InternalTranslation.readString(data.seek(pointer), phrase, trgCorpus);
+            }
+            return translation;
         }
 
         @Override
         public double getFrequency() {
-            return (double)translation.getNumberOfOccurrences() / total;
+            return (double)occurrences / total;
         }
-
+        
+        @Override
+        public long getOccurrences() {
+            return occurrences;
+        }
+        
         @Override
         public List<TranslationExample> getExamples() {
-            final List<TranslationExample> examples = new ArrayList<>();
-            for (InternalPhrasePairExample example : translation.getExamples()) {
-                examples.add(new TranslationExampleImpl(example));
+            if (maxExamples > 0 && !hasCorpora()) {
+                throw new IllegalStateException("The corpora of the model are not loaded");
+            }
+            if (examples == null) {
+                final List<TranslationExample> list = new ArrayList<>();
+                for (InternalPhrasePairExample example : InternalTranslation.readExamples(data.seek(pointer), maxExamples)) {
+                    list.add(new TranslationExampleImpl(example));
+                }
+                examples = Collections.unmodifiableList(list);
             }
             return examples;
         }
@@ -235,6 +757,87 @@ public class ContextDictionary {
             return example.getTrg().getRightContext(trgCorpus);
         }
         
+        @Override
+        public byte[] getSrcSentenceBytes() {
+            return example.getSrc().getFullTextBytes(srcCorpus);
+        }
+        
+        @Override
+        public int getSrcPhraseStart() {
+            return example.getSrc().getPhraseStartOffset();
+        }
+        
+        @Override
+        public int getSrcPhraseEnd() {
+            return example.getSrc().getPhraseEndOffset();
+        }
+        
+        @Override
+        public byte[] getTrgSentenceBytes() {
+            return example.getTrg().getFullTextBytes(trgCorpus);
+        }
+        
+        @Override
+        public int getTrgPhraseStart() {
+            return example.getTrg().getPhraseStartOffset();
+        }
+        
+        @Override
+        public int getTrgPhraseEnd() {
+            return example.getTrg().getPhraseEndOffset();
+        }
+        
+    }
+    
+    // Served from the top descendants stored in the node while there are
+    // enough of them, and searched below it afterwards
+    class Suggestions {
+        
+        private final InternalNodeCursor cursor; // null if no node matches
+        private final long node;
+        private int stored = 0; // Returned from the node
+        private InternalTopKSearch search; // Once they are not enough
+        private long pointer, weight;
+        
+        private Suggestions(InternalNodeCursor cursor) {
+            this.cursor = cursor;
+            node = cursor == null ? 0 : cursor.getPointer();
+        }
+        
+        // Moves to the next suggestion, returning false if there are no more
+        public boolean next() {
+            if (cursor == null) return false;
+            if (search == null && stored < cursor.getTopDescendantLength()) {
+                pointer = cursor.nextTopDescendant();
+                weight = cursor.getTopDescendantWeight();
+                stored++;
+                return true;
+            }
+            if (search == null) {
+                // The search finds the stored ones first
+                search = new InternalTopKSearch(index, data, new InternalNodeCursor(index).moveTo(node));
+                for (int i = 0; i < stored; i++) {
+                    search.next();
+                }
+            }
+            if (!search.next()) return false;
+            pointer = search.getPointer();
+            weight = search.getWeight();
+            return true;
+        }
+        
+        public long getPointer() {
+            return pointer;
+        }
+        
+        public long getWeight() {
+            return weight;
+        }
+        
+        public String getPhrase() {
+            return data.seek(pointer).readPhraseString(srcCorpus);
+        }
+        
     }
     
 }
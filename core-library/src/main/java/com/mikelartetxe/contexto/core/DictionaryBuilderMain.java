@@ -18,21 +18,125 @@
 package com.mikelartetxe.contexto.core;
 
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DictionaryBuilderMain {
     
     public static void main(String args[]) throws IOException {
-        if (args.length != 2) {
-            System.err.println("USAGE: java -jar core-library.jar src.txt trg.txt");
+        final BuildOptions options = new BuildOptions();
+        boolean phrasePairs = false, corpus = false, merge = false;
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            if (args[i].equals("--phrase-pairs")) {
+                phrasePairs = true;
+                i++;
+                continue;
+            } else if (args[i].equals("--corpus")) {
+                corpus = true;
+                i++;
+                continue;
+            } else if (args[i].equals("--merge")) {
+                merge = true;
+                i++;
+                continue;
+            } else if (args[i].equals("--reverse-alignment")) {
+                options.setReverseAlignment(true);
+                i++;
+                continue;
+            } else if (args[i].equals("--string-references")) {
+                options.setStringReferences(true);
+                i++;
+                continue;
+            } else if (args[i].equals("--shared-prefixes")) {
+                options.setSharedPrefixes(true);
+                i++;
+                continue;
+            } else if (args[i].equals("--locality-order")) {
+                options.setLocalityOrder(true);
+                i++;
+                continue;
+            } else if (args[i].equals("--shard")) {
+                options.setShard(true);
+                i++;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                break;
+            } else if (args[i].equals("--top-descendants")) {
+                options.setTopDescendants(Integer.parseInt(args[i+1]));
+            } else if (args[i].equals("--threads")) {
+                options.setThreads(Integer.parseInt(args[i+1]));
+            } else if (args[i].equals("--sort-memory")) {
+                options.setSortMemory(Long.parseLong(args[i+1]) << 20);
+            } else if (args[i].equals("--corpus-block-size")) {
+                options.setCorpusBlockSize(Integer.parseInt(args[i+1]));
+            } else if (args[i].equals("--tmp-dir")) {
+                options.setTempDirectory(new File(args[i+1]));
+            } else {
+                break;
+            }
+            i += 2;
+        }
+        final boolean validArgs = merge ?
+                args.length > i && !corpus && !phrasePairs :
+                args.length - i == (corpus ? 5 : 2) && !(corpus && phrasePairs);
+        if (!validArgs) {
+            System.err.println("USAGE: java -jar core-library.jar [--top-descendants N] [--threads N] [--corpus-block-size BYTES] " +
+                    "[--string-references] [--shared-prefixes] [--locality-order] [--tmp-dir DIR] " +
+                    "[--phrase-pairs [--shard] [--sort-memory MB]] src.txt trg.txt");
+            System.err.println("       java -jar core-library.jar [--top-descendants N] [--threads N] [--corpus-block-size BYTES] " +
+                    "[--string-references] [--shared-prefixes] [--locality-order] [--tmp-dir DIR] " +
+                    "--corpus [--reverse-alignment] [--shard] [--sort-memory MB] " +
+                    "src.txt trg.txt src.tok.txt trg.tok.txt src2trg.align.txt");
+            System.err.println("       java -jar core-library.jar [--top-descendants N] [--corpus-block-size BYTES] " +
+                    "[--string-references] [--shared-prefixes] [--locality-order] [--tmp-dir DIR] " +
+                    "--merge [--shard] model.bin...");
             System.exit(-1);
         }
         final OutputStream os = new BufferedOutputStream(System.out);
-        ContextDictionary.buildContextDictionary(System.in,
-                new FileInputStream(args[0]), new FileInputStream(args[1]), os);
+        final BuildStats stats;
+        if (merge) {
+            final List<File> models = new ArrayList<>();
+            for (int j = i; j < args.length; j++) {
+                models.add(new File(args[j]));
+            }
+            stats = ContextDictionary.mergeBinaryModels(models, os, options);
+        } else if (corpus) {
+            stats = ContextDictionary.buildContextDictionaryFromCorpus(new File(args[i]), new File(args[i+1]),
+                    new File(args[i+2]), new File(args[i+3]), new File(args[i+4]), os, options);
+        } else if (phrasePairs) {
+            stats = ContextDictionary.buildContextDictionaryFromPhrasePairs(System.in,
+                    new FileInputStream(args[i]), new FileInputStream(args[i+1]), os, options);
+        } else {
+            stats = ContextDictionary.buildContextDictionary(System.in,
+                    new FileInputStream(args[i]), new FileInputStream(args[i+1]), os, options);
+        }
         os.close();
+        
+        // Peak usage of the heap pools, which might not be simultaneous
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+        }
+        System.err.println("Built " + stats.getPhrases() + " phrases in " + stats.getNodes() + " nodes");
+        if (stats.getPhrasePairs() > 0) {
+            System.err.println("Sorted " + stats.getPhrasePairs() + " phrase pairs in " + stats.getSortRuns() +
+                    " runs using up to " + megabytes(stats.getPeakSortMemoryBytes()) + " MB");
+        }
+        System.err.println("Peak memory: " + megabytes(stats.getPeakTrieMemoryBytes()) + " MB for the trie, " +
+                megabytes(peakHeap) + " MB of heap (-Xmx" + megabytes(Runtime.getRuntime().maxMemory()) + "m)");
+    }
+    
+    private static long megabytes(long bytes) {
+        return (bytes + (1 << 20) - 1) >> 20;
     }
     
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+
+// Options for opening a binary model with ContextDictionary.fromBinaryModel
+public class DictionaryOptions {
+    
+    private boolean inMemory = false;
+    private boolean indexInMemory = false;
+    private boolean loadCorpora = true;
+    private int hotIndexLevels = 0;
+    private long hotIndexMaxBytes = Long.MAX_VALUE;
+    private long resultCacheMaxBytes = 0;
+    private long corpusCacheMaxBytes = 16 << 20;
+    
+    public boolean isInMemory() {
+        return inMemory;
+    }
+    
+    // Read the whole model into the heap instead of memory mapping it
+    public DictionaryOptions setInMemory(boolean inMemory) {
+        this.inMemory = inMemory;
+        return this;
+    }
+    
+    public boolean isIndexInMemory() {
+        return indexInMemory;
+    }
+    
+    // Read the index of the model (the nodes of the trie) into the heap even
+    // if the rest of it is memory mapped, so that lookups never wait for the
+    // disk. The index is small compared to the phrases and the corpora. Only
+    // models written since the format has sections support this.
+    public DictionaryOptions setIndexInMemory(boolean indexInMemory) {
+        this.indexInMemory = indexInMemory;
+        return this;
+    }
+    
+    public boolean getLoadCorpora() {
+        return loadCorpora;
+    }
+    
+    // Whether to load the corpora, which take most of the model but are only
+    // needed for the examples of translations. Without them, e.g. for a
+    // server that only answers autocomplete queries, reading examples fails,
+    // and models whose strings refer to the corpora can not be opened.
+    public DictionaryOptions setLoadCorpora(boolean loadCorpora) {
+        this.loadCorpora = loadCorpora;
+        return this;
+    }
+    
+    public int getHotIndexLevels() {
+        return hotIndexLevels;
+    }
+    
+    // Decode the given number of upper trie levels into the heap when the
+    // model is opened, so that lookups do not need to read them from the
+    // model again (0 disables the hot index)
+    public DictionaryOptions setHotIndexLevels(int hotIndexLevels) {
+        if (hotIndexLevels < 0) {
+            throw new IllegalArgumentException("Negative number of levels");
+        }
+        this.hotIndexLevels = hotIndexLevels;
+        return this;
+    }
+    
+    public long getHotIndexMaxBytes() {
+        return hotIndexMaxBytes;
+    }
+    
+    // Stop adding nodes to the hot index once it takes the given number of
+    // bytes, even if the requested number of levels has not been reached
+    public DictionaryOptions setHotIndexMaxBytes(long hotIndexMaxBytes) {
+        if (hotIndexMaxBytes < 0) {
+            throw new IllegalArgumentException("Negative memory budget");
+        }
+        this.hotIndexMaxBytes = hotIndexMaxBytes;
+        return this;
+    }
+    
+    public long getResultCacheMaxBytes() {
+        return resultCacheMaxBytes;
+    }
+    
+    // Cache the results of search and autocomplete queries, evicting the
+    // least recently used ones once their estimated size exceeds the given
+    // number of bytes (0 disables the cache)
+    public DictionaryOptions setResultCacheMaxBytes(long resultCacheMaxBytes) {
+        if (resultCacheMaxBytes < 0) {
+            throw new IllegalArgumentException("Negative cache size");
+        }
+        this.resultCacheMaxBytes = resultCacheMaxBytes;
+        return this;
+    }
+    
+    public long getCorpusCacheMaxBytes() {
+        return corpusCacheMaxBytes;
+    }
+    
+    // Keep the most recently decompressed blocks of models whose corpora are
+    // compressed, up to the given number of bytes (0 disables the cache, so
+    // every example fetched from such a model decompresses a whole block)
+    public DictionaryOptions setCorpusCacheMaxBytes(long corpusCacheMaxBytes) {
+        if (corpusCacheMaxBytes < 0) {
+            throw new IllegalArgumentException("Negative cache size");
+        }
+        this.corpusCacheMaxBytes = corpusCacheMaxBytes;
+        return this;
+    }
+    
+}
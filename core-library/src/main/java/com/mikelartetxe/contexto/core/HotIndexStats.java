@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+
+// Snapshot of the state of the hot index of a ContextDictionary
+public class HotIndexStats {
+    
+    private final int nodes;
+    private final int levels;
+    private final long memoryBytes;
+    private final long lookups;
+    private final long resolvedLookups;
+    
+    HotIndexStats(int nodes, int levels, long memoryBytes, long lookups, long resolvedLookups) {
+        this.nodes = nodes;
+        this.levels = levels;
+        this.memoryBytes = memoryBytes;
+        this.lookups = lookups;
+        this.resolvedLookups = resolvedLookups;
+    }
+    
+    public int getNodes() {
+        return nodes;
+    }
+    
+    // Number of complete levels in the index
+    public int getLevels() {
+        return levels;
+    }
+    
+    // Approximate heap memory used by the index
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+    
+    public long getLookups() {
+        return lookups;
+    }
+    
+    // Lookups that were answered without reading any node from the model
+    public long getResolvedLookups() {
+        return resolvedLookups;
+    }
+    
+    public double getResolvedRatio() {
+        return lookups == 0 ? 0 : (double)resolvedLookups / lookups;
+    }
+    
+    @Override
+    public String toString() {
+        return "HotIndexStats{nodes=" + nodes + ", levels=" + levels +
+                ", memoryBytes=" + memoryBytes + ", lookups=" + lookups +
+                ", resolvedLookups=" + resolvedLookups + "}";
+    }
+    
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.util.Arrays;
+
+
+// Looks up many queries at once in a single walk of the trie. Queries are
+// visited in byte order, keeping the path of nodes matched by the previous
+// query, so each query only descends from the deepest node it shares with
+// the previous one instead of starting again at the root.
+class InternalBatchLookup {
+    
+    private InternalBatchLookup() {}
+    
+    // Returns the pointer to the node matching each query, either exactly or
+    // as a prefix, or 0 if there is no such node. Results are in the order of
+    // the given queries.
+    public static long[] lookup(InternalNodeCursor cursor, long rootPointer, byte queries[][], boolean exact) {
+        final Query sorted[] = new Query[queries.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = new Query(queries[i], i);
+        }
+        Arrays.sort(sorted);
+        
+        // Nodes fully matched by the previous query along with the length of
+        // the query prefix matched once they are consumed
+        long pathNodes[] = new long[16];
+        int pathEnds[] = new int[16];
+        int pathLength = 0;
+        
+        final long res[] = new long[queries.length];
+        byte prev[] = null;
+        for (Query q : sorted) {
+            final int i = q.index;
+            final byte query[] = q.bytes;
+            final int common = prev == null ? 0 : commonPrefixLength(prev, query);
+            prev = query;
+            while (pathLength > 0 && pathEnds[pathLength - 1] > common) {
+                pathLength--;
+            }
+            
+            // Resume from the deepest shared node
+            int from;
+            if (pathLength == 0) {
+                from = 0;
+                cursor.moveTo(rootPointer);
+            } else {
+                from = pathEnds[pathLength - 1];
+                if (from == query.length) {
+                    res[i] = pathNodes[pathLength - 1];
+                    continue;
+                }
+                final long childPointer = cursor.moveTo(pathNodes[pathLength - 1]).findChild(query[from]);
+                if (childPointer == 0) {
+                    continue;
+                }
+                cursor.moveTo(childPointer);
+            }
+            
+            while (true) {
+                final int substringLength = cursor.getSubstringLength();
+                final int queryMissing = query.length - from;
+                if (substringLength > queryMissing) {
+                    if (!exact && cursor.matches(query, from, queryMissing)) {
+                        res[i] = cursor.getPointer();
+                    }
+                    break;
+                }
+                if (!cursor.matches(query, from, substringLength)) {
+                    break;
+                }
+                from += substringLength;
+                if (pathLength == pathNodes.length) {
+                    pathNodes = Arrays.copyOf(pathNodes, 2 * pathLength);
+                    pathEnds = Arrays.copyOf(pathEnds, 2 * pathLength);
+                }
+                pathNodes[pathLength] = cursor.getPointer();
+                pathEnds[pathLength] = from;
+                pathLength++;
+                if (from == query.length) {
+                    res[i] = cursor.getPointer();
+                    break;
+                }
+                final long childPointer = cursor.findChild(query[from]);
+                if (childPointer == 0) {
+                    break;
+                }
+                cursor.moveTo(childPointer);
+            }
+        }
+        return res;
+    }
+    
+    private static int commonPrefixLength(byte a[], byte b[]) {
+        final int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            if (a[i] != b[i]) return i;
+        }
+        return n;
+    }
+    
+    
+    private static class Query implements Comparable<Query> {
+        
+        public final byte bytes[];
+        public final int index;
+        private final long prefix; // First 8 bytes, so most comparisons are resolved at once
+        
+        public Query(byte bytes[], int index) {
+            this.bytes = bytes;
+            this.index = index;
+            long aux = 0;
+            for (int i = 0; i < 8; i++) {
+                aux = (aux << 8) | (i < bytes.length ? bytes[i] & 0xFF : 0);
+            }
+            this.prefix = aux;
+        }
+        
+        @Override
+        public int compareTo(Query other) {
+            // Compare the prefixes as unsigned longs
+            final int aux = Long.compare(prefix ^ Long.MIN_VALUE, other.prefix ^ Long.MIN_VALUE);
+            if (aux != 0) return aux;
+            final int n = Math.min(bytes.length, other.bytes.length);
+            for (int i = 8; i < n; i++) {
+                final int diff = (bytes[i] & 0xFF) - (other.bytes[i] & 0xFF); // as unsigned ints
+                if (diff != 0) return diff;
+            }
+            return bytes.length - other.bytes.length;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+// Size-bounded cache of decompressed blocks shared by all threads, keyed by
+// the pointer to the compressed block in the model. As in the result cache,
+// entries are split into independently locked LRU segments.
+class InternalBlockCache {
+    
+    private static final int SEGMENTS = 16;
+    
+    private final Segment segments[];
+    
+    public InternalBlockCache(long maxBytes) {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+    
+    private Segment segmentFor(long pointer) {
+        final long h = pointer ^ (pointer >>> 16) ^ (pointer >>> 32);
+        return segments[(int)((h & 0x7FFFFFFF) % SEGMENTS)];
+    }
+    
+    // Returns null if the block is not cached
+    public byte[] get(long pointer) {
+        return segmentFor(pointer).get(pointer);
+    }
+    
+    // Blocks must not be modified once they are cached
+    public void put(long pointer, byte block[]) {
+        segmentFor(pointer).put(pointer, block);
+    }
+    
+    
+    private static class Segment {
+        
+        private final LinkedHashMap<Long, byte[]> map = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxBytes;
+        private long bytes;
+        
+        public Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+        
+        public synchronized byte[] get(long pointer) {
+            return map.get(pointer);
+        }
+        
+        public synchronized void put(long pointer, byte block[]) {
+            if (block.length > maxBytes) {
+                return; // Would evict everything else and not fit anyway
+            }
+            final byte prev[] = map.put(pointer, block);
+            bytes += block.length - (prev == null ? 0 : prev.length);
+            final Iterator<byte[]> it = map.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().length;
+                it.remove();
+            }
+        }
+        
+    }
+    
+}
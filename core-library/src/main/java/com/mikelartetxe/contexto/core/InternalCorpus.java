@@ -17,31 +17,122 @@
 
 package com.mikelartetxe.contexto.core;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
+// Sentences of one side of the parallel corpus. Since V5, the index of the
+// corpus starts with its encoding: sentences are either stored as they are,
+// or concatenated into blocks of whole sentences that are compressed on their
+// own, in which case sentences are addressed by their offset in the
+// uncompressed text and decompressed blocks are kept in a shared cache.
 class InternalCorpus {
     
     private static final Charset CHARSET = Charset.forName("utf-8");
+    
+    private static final int RAW = 0;
+    private static final int BLOCKS = 1;
+    
     private final InternalDataReader reader;
-    private final long id2ptr[];
+    private final long id2ptr[]; // Offsets in the uncompressed text if compressed
+    private final long blockStarts[]; // Offset of each block in the uncompressed text plus the total length, null if not compressed
+    private final long blockPointers[]; // Pointer to each compressed block plus one past the last one
+    private final InternalBlockCache cache;
     
-    private InternalCorpus(InternalDataReader reader) {
+    private InternalCorpus(InternalDataReader reader, InternalBlockCache cache) {
         this.reader = reader;
+        this.cache = cache;
+        final int encoding = reader.getVersion() >= InternalFormat.V5 ? reader.readCompressedInt() : RAW;
+        if (encoding != RAW && encoding != BLOCKS) {
+            throw new IllegalArgumentException("Unknown corpus encoding: " + encoding);
+        }
         id2ptr = new long[reader.readCompressedInt()];
-        for (int i = 0; i < id2ptr.length; i++) {
-            id2ptr[i] = reader.readLong();
+        if (reader.getVersion() >= InternalFormat.V3) {
+            // Pointers are stored as deltas (i.e. sentence lengths)
+            long ptr = 0;
+            for (int i = 0; i < id2ptr.length; i++) {
+                ptr += reader.readCompressedLong();
+                id2ptr[i] = ptr;
+            }
+        } else {
+            for (int i = 0; i < id2ptr.length; i++) {
+                id2ptr[i] = reader.readLong();
+            }
+        }
+        if (encoding == BLOCKS) {
+            // Blocks are stored one after the other, so their compressed and
+            // uncompressed lengths are enough to locate them
+            final int blocks = reader.readCompressedInt();
+            blockStarts = new long[blocks + 1];
+            blockPointers = new long[blocks + 1];
+            blockPointers[0] = reader.readCompressedLong();
+            for (int i = 0; i < blocks; i++) {
+                blockPointers[i + 1] = blockPointers[i] + reader.readCompressedLong();
+                blockStarts[i + 1] = blockStarts[i] + reader.readCompressedLong();
+            }
+        } else {
+            blockStarts = null;
+            blockPointers = null;
         }
     }
     
     private byte[] getBytes(long fromPtr, long toPtr) {
-        return reader.seek(fromPtr).readBytes((int)(toPtr-fromPtr));
+        if (blockStarts == null) {
+            return reader.seek(fromPtr).readBytes((int)(toPtr-fromPtr));
+        } else if (toPtr == fromPtr) {
+            return new byte[0];
+        }
+        
+        // Sentences never span several blocks, so the whole range is in the
+        // block containing its first byte
+        int block = Arrays.binarySearch(blockStarts, fromPtr);
+        if (block < 0) block = -block - 2;
+        final byte data[] = getBlock(block);
+        final int from = (int)(fromPtr - blockStarts[block]);
+        return Arrays.copyOfRange(data, from, from + (int)(toPtr - fromPtr));
+    }
+    
+    private byte[] getBlock(int block) {
+        final long pointer = blockPointers[block];
+        byte res[] = cache == null ? null : cache.get(pointer);
+        if (res == null) {
+            final byte compressed[] = reader.seek(pointer).readBytes((int)(blockPointers[block + 1] - pointer));
+            res = new byte[(int)(blockStarts[block + 1] - blockStarts[block])];
+            final Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed);
+                int n = 0;
+                while (n < res.length) {
+                    final int read = inflater.inflate(res, n, res.length - n);
+                    if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IllegalStateException("Corrupted corpus block");
+                    }
+                    n += read;
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupted corpus block", e);
+            } finally {
+                inflater.end();
+            }
+            if (cache != null) cache.put(pointer, res);
+        }
+        return res;
+    }
+    
+    public int size() {
+        return id2ptr.length - 1;
+    }
+    
+    public int getSentenceLength(int id) {
+        return (int)(id2ptr[id+1] - id2ptr[id]);
     }
     
     public byte[] getSentenceBytes(int id) {
@@ -81,25 +172,119 @@ class InternalCorpus {
     }
     
     public static long write(InputStream is, InternalDataWriter writer) throws IOException {
-        // Write sentences
+        return write(is, writer, 0);
+    }
+    
+    // Writes the sentences as they are if the block size is 0, or compressed
+    // in blocks of whole sentences of about the given number of bytes otherwise
+    public static long write(InputStream is, InternalDataWriter writer, int blockSize) throws IOException {
+        final InternalLineReader in = new InternalLineReader(is);
+        return write(new SentenceSource() {
+            @Override
+            public byte[] next() throws IOException {
+                return in.readLine();
+            }
+        }, writer, blockSize);
+    }
+    
+    // Same as above, but copying the sentences of a corpus that has already
+    // been written
+    public static long write(final InternalCorpus corpus, InternalDataWriter writer, int blockSize) throws IOException {
+        return write(new SentenceSource() {
+            private int id = 0;
+            @Override
+            public byte[] next() {
+                return id < corpus.size() ? corpus.getSentenceBytes(id++) : null;
+            }
+        }, writer, blockSize);
+    }
+    
+    private interface SentenceSource {
+        byte[] next() throws IOException;
+    }
+    
+    private static long write(SentenceSource in, InternalDataWriter writer, int blockSize) throws IOException {
+        if (blockSize < 0) {
+            throw new IllegalArgumentException("Negative block size");
+        }
+        
+        // Write sentences, copying their bytes as they are or compressing them
         final List<Long> pointers = new ArrayList<>();
-        final BufferedReader in = new BufferedReader(new InputStreamReader(is));
-        String line;
-        while ((line = in.readLine()) != null) {
-            pointers.add(writer.writeBytes(line.getBytes(CHARSET)));
+        final List<Long> blockPointers = new ArrayList<>();
+        final List<Long> blockEnds = new ArrayList<>(); // In the uncompressed text
+        final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        long offset = 0; // In the uncompressed text
+        try {
+            byte line[];
+            while ((line = in.next()) != null) {
+                if (blockSize == 0) {
+                    pointers.add(writer.writeBytes(line));
+                    continue;
+                }
+                if (block.size() > 0 && block.size() + line.length > blockSize) {
+                    blockPointers.add(writeBlock(block, deflater, writer));
+                    blockEnds.add(offset);
+                }
+                pointers.add(offset);
+                block.write(line, 0, line.length);
+                offset += line.length;
+            }
+            if (blockSize == 0) {
+                pointers.add(writer.writeByte(0));
+            } else {
+                if (block.size() > 0) {
+                    blockPointers.add(writeBlock(block, deflater, writer));
+                    blockEnds.add(offset);
+                }
+                pointers.add(offset);
+            }
+        } finally {
+            deflater.end();
         }
-        pointers.add(writer.writeByte(0));
         
-        // Write sentence index/pointers
-        final long ptr = writer.writeCompressedInt(pointers.size());
+        // Write sentence index/pointers as deltas
+        final long ptr = writer.writeCompressedInt(blockSize == 0 ? RAW : BLOCKS);
+        writer.writeCompressedInt(pointers.size());
+        long prev = 0;
         for (long pointer : pointers) {
-            writer.writeCompressedPointer(pointer);
+            writer.writeCompressedLong(pointer - prev);
+            prev = pointer;
+        }
+        
+        // Write the compressed and uncompressed length of each block
+        if (blockSize > 0) {
+            writer.writeCompressedInt(blockPointers.size());
+            writer.writeCompressedLong(blockPointers.isEmpty() ? 0 : blockPointers.get(0));
+            long prevEnd = 0;
+            for (int i = 0; i < blockPointers.size(); i++) {
+                final long end = i + 1 < blockPointers.size() ? blockPointers.get(i + 1) : ptr;
+                writer.writeCompressedLong(end - blockPointers.get(i));
+                writer.writeCompressedLong(blockEnds.get(i) - prevEnd);
+                prevEnd = blockEnds.get(i);
+            }
         }
         return ptr;
     }
     
-    public static InternalCorpus read(InternalDataReader reader) {
-        return new InternalCorpus(reader);
+    // Compresses the block and writes it, returning the pointer to it
+    private static long writeBlock(ByteArrayOutputStream block, Deflater deflater, InternalDataWriter writer) throws IOException {
+        deflater.reset();
+        deflater.setInput(block.toByteArray());
+        deflater.finish();
+        final byte buffer[] = new byte[8192];
+        long pointer = -1;
+        while (!deflater.finished()) {
+            final int n = deflater.deflate(buffer);
+            final long p = writer.writeBytes(buffer, 0, n);
+            if (pointer < 0) pointer = p;
+        }
+        block.reset();
+        return pointer;
+    }
+    
+    public static InternalCorpus read(InternalDataReader reader, InternalBlockCache cache) {
+        return new InternalCorpus(reader, cache);
     }
     
 }
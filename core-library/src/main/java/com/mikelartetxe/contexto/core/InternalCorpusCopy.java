@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+
+// Temporary copy of both sides of the corpus, stored uncompressed in a memory
+// mapped file, so that phrase and translation strings can be checked against
+// the corpus bytes of their examples while the model is being built. The
+// file is unmapped and deleted when the copy is closed, so the corpora must
+// not be used afterwards.
+class InternalCorpusCopy implements Closeable {
+    
+    private final File file;
+    private final InternalCorpus src, trg;
+    private InternalDataReader reader; // null once unmapped
+    
+    public InternalCorpusCopy(InputStream src, InputStream trg, File tempDirectory) throws IOException {
+        file = File.createTempFile("contexto-corpus-", ".bin", tempDirectory);
+        try {
+            final long srcPointer, trgPointer;
+            try (final OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+                final InternalDataWriter writer = new InternalDataWriter(os);
+                InternalFormat.writeHeader(writer);
+                srcPointer = InternalCorpus.write(src, writer);
+                trgPointer = InternalCorpus.write(trg, writer);
+            }
+            try (final FileChannel fc = new RandomAccessFile(file, "r").getChannel()) {
+                reader = new InternalDataReader(InternalDataReader.load(fc, false));
+                this.src = reader.seek(srcPointer).readCorpus(null);
+                this.trg = reader.seek(trgPointer).readCorpus(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    public InternalCorpus getSrc() {
+        return src;
+    }
+    
+    public InternalCorpus getTrg() {
+        return trg;
+    }
+    
+    @Override
+    public void close() {
+        if (reader != null) {
+            reader.unmap();
+            reader = null;
+        }
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit(); // Still mapped if the JVM could not unmap it
+        }
+    }
+    
+}
@@ -17,101 +17,290 @@
 
 package com.mikelartetxe.contexto.core;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
 
 
-// TODO Add support for >2GB files
+// Data is addressed through an array of buffers (segments) so that files
+// larger than 2GB can be read. All segments but the last one must have
+// exactly SEGMENT_SIZE bytes. Readers may cover a single section of the file
+// starting at a base pointer, but pointers are always relative to the
+// beginning of the file.
 class InternalDataReader {
     
-    private final ByteBuffer buffer;
+    public static final int SEGMENT_BITS = 30;
+    public static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    
+    private final ByteBuffer segments[];
+    private final long base;
+    private final long size;
+    private final int version;
     private long ptr;
     
     public InternalDataReader(ByteBuffer buffer) {
-        this.buffer = buffer;
-        ptr = 0;
+        this(new ByteBuffer[]{buffer});
+    }
+    
+    public InternalDataReader(ByteBuffer segments[]) {
+        this(segments, 0, InternalFormat.readVersion(segments[0]));
     }
     
-    private InternalDataReader(ByteBuffer buffer, long ptr) {
-        this.buffer = buffer;
+    // Reader for the part of a file that starts at the given pointer, which
+    // does not include the header with the version
+    public InternalDataReader(ByteBuffer segments[], long base, int version) {
+        long size = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (i < segments.length - 1 && segments[i].capacity() != SEGMENT_SIZE) {
+                throw new IllegalArgumentException("Invalid segment size");
+            }
+            size += segments[i].capacity();
+        }
+        this.segments = segments;
+        this.base = base;
+        this.size = size;
+        this.version = version;
+        ptr = base;
+    }
+    
+    private InternalDataReader(ByteBuffer segments[], long base, long size, int version, long ptr) {
+        this.segments = segments;
+        this.base = base;
+        this.size = size;
+        this.version = version;
         this.ptr = ptr;
     }
     
+    // Splits the file into segments that are either memory mapped or read
+    // into the heap
+    public static ByteBuffer[] load(FileChannel fc, boolean inMemory) throws IOException {
+        return load(fc, 0, fc.size(), inMemory);
+    }
+    
+    // Same for the given part of the file only
+    public static ByteBuffer[] load(FileChannel fc, long offset, long size, boolean inMemory) throws IOException {
+        final ByteBuffer segments[] = new ByteBuffer[(int)(Math.max(size - 1, 0) / SEGMENT_SIZE + 1)];
+        for (int i = 0; i < segments.length; i++) {
+            final long position = offset + (long)i * SEGMENT_SIZE;
+            final long length = Math.min(SEGMENT_SIZE, offset + size - position);
+            if (inMemory) {
+                segments[i] = ByteBuffer.allocate((int)length);
+                while (segments[i].hasRemaining()) {
+                    if (fc.read(segments[i], position + segments[i].position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            } else {
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, position, length);
+            }
+        }
+        return segments;
+    }
+    
+    // Adds all the bytes of the reader to the checksum
+    public void updateChecksum(Checksum checksum) {
+        final byte buffer[] = new byte[1 << 16];
+        for (ByteBuffer segment : segments) {
+            final ByteBuffer b = segment.duplicate();
+            b.clear();
+            while (b.hasRemaining()) {
+                final int n = Math.min(buffer.length, b.remaining());
+                b.get(buffer, 0, n);
+                checksum.update(buffer, 0, n);
+            }
+        }
+    }
+    
+    // Unmaps the memory mapped segments right away instead of when they are
+    // garbage collected. Neither this reader nor any other one sharing its
+    // segments may be used afterwards, or the JVM might crash. There is no
+    // public API for this, so it is left to the garbage collector if the
+    // internal one of the JVM is not available.
+    public void unmap() {
+        for (ByteBuffer segment : segments) {
+            if (segment instanceof MappedByteBuffer) unmap(segment);
+        }
+    }
+    
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and later
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Field unsafe = unsafeClass.getDeclaredField("theUnsafe");
+                unsafe.setAccessible(true);
+                unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 7 and 8
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Unmapped once garbage collected
+        }
+    }
+    
     public InternalDataReader seek(long ptr) {
-        return new InternalDataReader(buffer, ptr);
+        return new InternalDataReader(segments, base, size, version, ptr);
+    }
+    
+    // Pointer to the first byte covered by this reader
+    public long getBase() {
+        return base;
+    }
+    
+    // Number of bytes covered by this reader
+    public long size() {
+        return size;
+    }
+    
+    public int getVersion() {
+        return version;
+    }
+    
+    public long getPointer() {
+        return ptr;
+    }
+    
+    // Unlike seek, this moves this reader instead of creating a new one
+    public InternalDataReader setPointer(long ptr) {
+        this.ptr = ptr;
+        return this;
+    }
+    
+    public InternalDataReader skip(long bytes) {
+        ptr += bytes;
+        return this;
     }
     
     public byte readByte() {
-        final byte res = buffer.get((int)ptr);
+        final byte res = segments[(int)((ptr - base) >>> SEGMENT_BITS)].get((int)((ptr - base) & SEGMENT_MASK));
         ptr += 1;
         return res;
     }
     
     public byte[] readBytes(int count) {
         final byte res[] = new byte[count];
-        for (int i = 0; i < count; i++) res[i] = readByte();
+        int i = 0;
+        while (i < count) {
+            // Copy up to the end of the current segment
+            final ByteBuffer segment = segments[(int)((ptr - base) >>> SEGMENT_BITS)];
+            final int offset = (int)((ptr - base) & SEGMENT_MASK);
+            final int n = Math.min(count - i, segment.capacity() - offset);
+            for (int j = 0; j < n; j++) res[i + j] = segment.get(offset + j);
+            i += n;
+            ptr += n;
+        }
         return res;
     }
     
     public int readUnsignedByte() {
-        final byte b = buffer.get((int)ptr);
-        final int res = b & 0xFF;
-        ptr += 1;
-        return res;
+        return readByte() & 0xFF;
     }
     
     public int readInt() {
-        final int res = buffer.getInt((int)ptr);
+        final ByteBuffer segment = segments[(int)((ptr - base) >>> SEGMENT_BITS)];
+        final int offset = (int)((ptr - base) & SEGMENT_MASK);
+        if (offset + 4 > segment.capacity()) {
+            return (int)readLong(4); // Crosses a segment boundary
+        }
+        final int res = segment.getInt(offset);
         ptr += 4;
         return res;
     }
     
     public long readLong() {
-        final long res = buffer.getLong((int)ptr);
+        final ByteBuffer segment = segments[(int)((ptr - base) >>> SEGMENT_BITS)];
+        final int offset = (int)((ptr - base) & SEGMENT_MASK);
+        if (offset + 8 > segment.capacity()) {
+            return readLong(8); // Crosses a segment boundary
+        }
+        final long res = segment.getLong(offset);
         ptr += 8;
         return res;
     }
     
+    // Reads a big-endian unsigned value stored in the given number of bytes
+    public long readLong(int bytes) {
+        long res = 0;
+        for (int i = 0; i < bytes; i++) {
+            res = (res << 8) | readUnsignedByte();
+        }
+        return res;
+    }
+    
     public long readPointer() {
         return readLong();
     }
     
-    // TODO Implement compression
     public int readCompressedInt() {
-        return readInt();
+        return version >= InternalFormat.V3 ? (int)readVarLong() : readInt();
     }
     
-    // TODO Implement compression
     public long readCompressedLong() {
-        return readLong();
+        return version >= InternalFormat.V3 ? readVarLong() : readLong();
     }
     
-    // TODO Implement compression
     public long readCompressedPointer() {
-        return readLong();
+        return version >= InternalFormat.V3 ? readVarLong() : readLong();
+    }
+    
+    // Reads a pointer that was written relative to the given base pointer
+    public long readCompressedPointer(long base) {
+        if (version < InternalFormat.V3) {
+            return readLong();
+        }
+        final long delta = readVarLong();
+        return delta == 0 ? 0 : base + InternalDataWriter.unzigzag(delta);
+    }
+    
+    private long readVarLong() {
+        long res = 0;
+        for (int shift = 0; ; shift += 7) {
+            final int b = readUnsignedByte();
+            res |= (long)(b & 0x7F) << shift;
+            if (b < 0x80) return res;
+        }
     }
     
     public InternalNode readNode() {
         return InternalNode.read(this);
     }
     
-    public byte readFirstByteFromNode() {
-        return InternalNode.readFirstByte(this);
+    public InternalPhrase readPhrase(InternalCorpus srcCorpus, InternalCorpus trgCorpus) {
+        return InternalPhrase.read(this, srcCorpus, trgCorpus);
+    }
+    
+    public long readPhraseWeight() {
+        return InternalPhrase.readWeight(this);
+    }
+    
+    public String readPhraseString(InternalCorpus srcCorpus) {
+        return InternalPhrase.readString(this, srcCorpus);
     }
     
-    public InternalPhrase readPhrase() {
-        return InternalPhrase.read(this);
+    public long[] readTranslationPointers() {
+        return InternalPhrase.readTranslationPointers(this);
     }
     
-    public InternalTranslation readTranslation() {
-        return InternalTranslation.read(this);
+    public InternalTranslation readTranslation(byte phrase[], InternalCorpus trgCorpus) {
+        return InternalTranslation.read(this, phrase, trgCorpus);
     }
     
     public InternalPhrasePairExample readExample() {
         return InternalPhrasePairExample.read(this);
     }
     
-    public InternalCorpus readCorpus() {
-        return InternalCorpus.read(this);
+    public InternalCorpus readCorpus(InternalBlockCache cache) {
+        return InternalCorpus.read(this, cache);
     }
     
 }
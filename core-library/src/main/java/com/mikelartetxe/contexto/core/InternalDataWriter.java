@@ -17,21 +17,71 @@
 
 package com.mikelartetxe.contexto.core;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 
 class InternalDataWriter {
     
+    private static final int CHECKSUM_BUFFER_SIZE = 1 << 16;
+    
     private final DataOutputStream out;
+    private final CheckedOutputStream checked; // Null unless the checksum is computed
     private long pos;
     
+    // Discards everything, so that the size of the data can be measured
+    public static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {}
+        @Override
+        public void write(byte b[], int off, int len) {}
+    };
+    
     public InternalDataWriter(final OutputStream os) {
+        this(os, 0);
+    }
+    
+    // Pointers start at the given position instead of 0
+    public InternalDataWriter(final OutputStream os, long pos) {
         out = new DataOutputStream(os);
+        checked = null;
+        this.pos = pos;
+    }
+    
+    // Computes the CRC-32 of everything written (see getChecksum). Data is
+    // buffered, so that it is computed over whole blocks instead of byte by
+    // byte, and must be flushed at the end.
+    public InternalDataWriter(final OutputStream os, boolean checksum) {
+        checked = checksum ? new CheckedOutputStream(os, new CRC32()) : null;
+        out = new DataOutputStream(checksum ? new BufferedOutputStream(checked, CHECKSUM_BUFFER_SIZE) : os);
         pos = 0;
     }
     
+    public boolean hasChecksum() {
+        return checked != null;
+    }
+    
+    // CRC-32 of everything written so far
+    public long getChecksum() throws IOException {
+        if (checked == null) {
+            throw new IllegalStateException("The checksum is not computed");
+        }
+        out.flush();
+        return checked.getChecksum().getValue();
+    }
+    
+    public void flush() throws IOException {
+        out.flush();
+    }
+    
+    public long getPointer() {
+        return pos;
+    }
+    
     public long writeByte(byte b) throws IOException {
         out.writeByte(b);
         return pos++;
@@ -48,6 +98,12 @@ class InternalDataWriter {
         return pos - b.length;
     }
     
+    public long writeBytes(byte[] b, int offset, int length) throws IOException {
+        out.write(b, offset, length);
+        pos += length;
+        return pos - length;
+    }
+    
     public long writeInt(int i) throws IOException {
         out.writeInt(i);
         pos += 4;
@@ -59,35 +115,84 @@ class InternalDataWriter {
         return pos - 8;
     }
     
+    // Writes a big-endian unsigned value using the given number of bytes
+    public long writeLong(long l, int bytes) throws IOException {
+        for (int i = bytes - 1; i >= 0; i--) {
+            out.writeByte((int)(l >>> (8*i)));
+        }
+        pos += bytes;
+        return pos - bytes;
+    }
+    
+    // Writes zeros up to the next multiple of the given number of bytes and
+    // returns the resulting pointer
+    public long align(int alignment) throws IOException {
+        while (pos % alignment != 0) {
+            out.writeByte(0);
+            pos++;
+        }
+        return pos;
+    }
+    
     public long writePointer(long p) throws IOException {
         return writeLong(p);
     }
     
-    // TODO Implement compression
     public long writeCompressedInt(int i) throws IOException {
-        return writeInt(i);
+        return writeVarLong(i & 0xFFFFFFFFL);
     }
     
-    // TODO Implement compression
     public long writeCompressedLong(long l) throws IOException {
-        return writeLong(l);
+        return writeVarLong(l);
     }
     
-    // TODO Implement compression
     public long writeCompressedPointer(long pointer) throws IOException {
-        return writeLong(pointer);
+        return writeVarLong(pointer);
+    }
+    
+    // Writes a pointer relative to the given base pointer, which must be
+    // different from the pointer itself unless the latter is null
+    public long writeCompressedPointer(long pointer, long base) throws IOException {
+        return writeVarLong(pointer == 0 ? 0 : zigzag(pointer - base));
+    }
+    
+    private long writeVarLong(long l) throws IOException {
+        final long pointer = pos;
+        while ((l & ~0x7FL) != 0) {
+            out.writeByte((int)((l & 0x7F) | 0x80));
+            l >>>= 7;
+            pos++;
+        }
+        out.writeByte((int)l);
+        pos++;
+        return pointer;
+    }
+    
+    // Maps signed values to unsigned ones so that small magnitudes stay small
+    public static long zigzag(long l) {
+        return (l << 1) ^ (l >> 63);
+    }
+    
+    public static long unzigzag(long l) {
+        return (l >>> 1) ^ -(l & 1);
+    }
+    
+    // Number of bytes needed to store the given unsigned value
+    public static int byteWidth(long l) {
+        return l == 0 ? 1 : (64 - Long.numberOfLeadingZeros(l) + 7) / 8;
     }
     
     public long writeNode(InternalNode node) throws IOException {
         return node.write(this);
     }
     
-    public long writePhrase(InternalPhrase phrase) throws IOException {
-        return phrase.write(this);
+    public long writePhrase(InternalPhrase phrase, InternalStringEncoding.Encoder strings) throws IOException {
+        return phrase.write(this, strings);
     }
     
-    public long writeTranslation(InternalTranslation translation) throws IOException {
-        return translation.write(this);
+    public long writeTranslation(InternalTranslation translation, byte phrase[],
+            InternalStringEncoding.Encoder strings) throws IOException {
+        return translation.write(this, phrase, strings);
     }
     
     public long writePhrasePairExample(InternalPhrasePairExample example) throws IOException {
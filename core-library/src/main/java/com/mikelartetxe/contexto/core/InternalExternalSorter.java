@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+
+// External merge sort of byte records (e.g. lines of a text file). Records are
+// buffered until the memory budget is exhausted, at which point they are
+// sorted and spilled to a compressed run in the temporary directory. Runs are
+// then merged, in several passes if there are too many of them to be read at
+// once. Records are compared as unsigned bytes, except for tabs, which come
+// before any other byte, so tab separated records are sorted field by field.
+class InternalExternalSorter implements Closeable {
+    
+    private static final int RECORD_OVERHEAD = 40; // Estimated heap usage of a byte array and its reference
+    private static final int MAX_RUNS_PER_MERGE = 64;
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    public static final Comparator<byte[]> ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte a[], byte b[]) {
+            final int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                if (a[i] != b[i]) return key(a[i]) - key(b[i]);
+            }
+            return a.length - b.length;
+        }
+        private int key(byte b) {
+            return b == '\t' ? -1 : b & 0xFF; // as unsigned ints
+        }
+    };
+    
+    private final long maxMemory;
+    private final File tempDirectory;
+    private final List<byte[]> records = new ArrayList<>();
+    private long memory = 0, peakMemory = 0;
+    private long size = 0;
+    private int spilledRuns = 0;
+    private final List<File> runs = new ArrayList<>();
+    private PriorityQueue<Run> queue;
+    
+    // A null temporary directory stands for the default one of the system
+    public InternalExternalSorter(long maxMemory, File tempDirectory) {
+        if (maxMemory <= 0) {
+            throw new IllegalArgumentException("The memory for sorting must be positive");
+        }
+        this.maxMemory = maxMemory;
+        this.tempDirectory = tempDirectory;
+    }
+    
+    public void add(byte record[]) throws IOException {
+        if (queue != null) {
+            throw new IllegalStateException("Records cannot be added once sorted");
+        }
+        records.add(record);
+        size++;
+        memory += record.length + RECORD_OVERHEAD;
+        peakMemory = Math.max(peakMemory, memory);
+        if (memory >= maxMemory) {
+            spill();
+        }
+    }
+    
+    // Sorts the buffered records and writes them to a new run
+    private void spill() throws IOException {
+        Collections.sort(records, ORDER);
+        final File file = File.createTempFile("contexto-sort-", ".run", tempDirectory);
+        runs.add(file);
+        spilledRuns++;
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), deflater, BUFFER_SIZE))) {
+            for (byte record[] : records) {
+                out.writeInt(record.length);
+                out.write(record);
+            }
+        } finally {
+            deflater.end();
+        }
+        records.clear();
+        memory = 0;
+    }
+    
+    // Merges the given runs into a new one
+    private File merge(List<File> files) throws IOException {
+        final File file = File.createTempFile("contexto-sort-", ".run", tempDirectory);
+        runs.add(file);
+        final PriorityQueue<Run> queue = new PriorityQueue<>();
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), deflater, BUFFER_SIZE))) {
+            for (File f : files) {
+                final Run run = new FileRun(f);
+                if (run.next()) queue.add(run); else run.close();
+            }
+            while (!queue.isEmpty()) {
+                final Run run = queue.poll();
+                out.writeInt(run.record.length);
+                out.write(run.record);
+                if (run.next()) queue.add(run); else run.close();
+            }
+        } finally {
+            for (Run run : queue) run.close();
+            deflater.end();
+        }
+        for (File f : files) delete(f);
+        return file;
+    }
+    
+    // Called once all the records have been added, before reading them back in order
+    public void sort() throws IOException {
+        if (queue != null) {
+            throw new IllegalStateException("Records already sorted");
+        }
+        Collections.sort(records, ORDER);
+        
+        // Merge runs until they can all be read at once along with the records in memory
+        List<File> pending = new ArrayList<>(runs);
+        while (pending.size() > MAX_RUNS_PER_MERGE - 1) {
+            final List<File> merged = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i += MAX_RUNS_PER_MERGE) {
+                final List<File> group = pending.subList(i, Math.min(pending.size(), i + MAX_RUNS_PER_MERGE));
+                merged.add(group.size() == 1 ? group.get(0) : merge(group));
+            }
+            pending = merged;
+        }
+        
+        queue = new PriorityQueue<>();
+        final Run memoryRun = new MemoryRun(records);
+        if (memoryRun.next()) queue.add(memoryRun);
+        for (File f : pending) {
+            final Run run = new FileRun(f);
+            if (run.next()) queue.add(run); else run.close();
+        }
+    }
+    
+    // Returns the next record in order or null once all have been read
+    public byte[] next() throws IOException {
+        if (queue == null) {
+            throw new IllegalStateException("Records not sorted yet");
+        }
+        final Run run = queue.poll();
+        if (run == null) {
+            return null;
+        }
+        final byte res[] = run.record;
+        if (run.next()) queue.add(run); else run.close();
+        return res;
+    }
+    
+    public long size() {
+        return size;
+    }
+    
+    // Number of sorted runs written to disk before merging them
+    public int getSpilledRuns() {
+        return spilledRuns;
+    }
+    
+    // Approximate peak heap memory used by the records buffered in memory
+    public long getPeakMemoryBytes() {
+        return peakMemory;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (queue != null) {
+            for (Run run : queue) run.close();
+            queue.clear();
+        }
+        for (File f : runs) delete(f);
+        runs.clear();
+        records.clear();
+    }
+    
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+    
+    
+    // Sorted sequence of records being merged, ranked by its current record
+    private abstract static class Run implements Comparable<Run> {
+        
+        public byte record[];
+        
+        // Moves to the next record, returning false at the end of the run
+        public abstract boolean next() throws IOException;
+        
+        public void close() throws IOException {}
+        
+        @Override
+        public int compareTo(Run other) {
+            return ORDER.compare(record, other.record);
+        }
+        
+    }
+    
+    private static class MemoryRun extends Run {
+        
+        private final List<byte[]> records;
+        private int i = 0;
+        
+        public MemoryRun(List<byte[]> records) {
+            this.records = records;
+        }
+        
+        @Override
+        public boolean next() {
+            if (i == records.size()) {
+                return false;
+            }
+            record = records.get(i);
+            records.set(i++, null); // Release the memory as soon as possible
+            return true;
+        }
+        
+    }
+    
+    private static class FileRun extends Run {
+        
+        private final Inflater inflater = new Inflater();
+        private final DataInputStream in;
+        
+        public FileRun(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+                    new FileInputStream(file), inflater, BUFFER_SIZE), BUFFER_SIZE));
+        }
+        
+        @Override
+        public boolean next() throws IOException {
+            final int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                record = null;
+                return false;
+            }
+            record = new byte[length];
+            in.readFully(record);
+            return true;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+            inflater.end();
+        }
+        
+    }
+    
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+
+// Fields of a line separated by the given byte, parsed from its bytes in place
+class InternalFields {
+    
+    private static final Charset CHARSET = Charset.forName("utf-8");
+    
+    private final byte line[];
+    private final int to;
+    private final byte separator;
+    private int pos;
+    
+    public InternalFields(byte line[], int from, int to, byte separator) {
+        this.line = line;
+        this.pos = from;
+        this.to = to;
+        this.separator = separator;
+    }
+    
+    public boolean hasNext() {
+        return pos <= to;
+    }
+    
+    private int nextEnd() {
+        if (!hasNext()) throw malformed();
+        int end = pos;
+        while (end < to && line[end] != separator) end++;
+        return end;
+    }
+    
+    public byte[] nextBytes() {
+        final int end = nextEnd();
+        final byte res[] = Arrays.copyOfRange(line, pos, end);
+        pos = end + 1;
+        return res;
+    }
+    
+    public InternalFields nextFields(byte separator) {
+        final int end = nextEnd();
+        final InternalFields res = new InternalFields(line, pos, end, separator);
+        pos = end + 1;
+        return res;
+    }
+    
+    public long nextLong() {
+        final int end = nextEnd();
+        if (end == pos) throw malformed();
+        long res = 0;
+        for (int i = pos; i < end; i++) {
+            final int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) throw malformed();
+            res = 10*res + digit;
+        }
+        pos = end + 1;
+        return res;
+    }
+    
+    public int nextInt() {
+        final long res = nextLong();
+        if (res > Integer.MAX_VALUE) throw malformed();
+        return (int)res;
+    }
+    
+    public void checkEnd() {
+        if (hasNext()) throw malformed();
+    }
+    
+    private IllegalArgumentException malformed() {
+        int from = pos, end = pos;
+        while (from > 0 && line[from - 1] != '\n') from--;
+        while (end < line.length && line[end] != '\n') end++;
+        return new IllegalArgumentException("Malformed line: " + new String(line, from, end - from, CHARSET));
+    }
+    
+}
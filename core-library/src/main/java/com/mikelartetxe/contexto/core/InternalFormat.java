@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+// Versioned models start with a magic number followed by the format version.
+// Models written before versioning was introduced start with a 0 byte instead,
+// so they can be told apart by looking at the first byte of the file.
+class InternalFormat {
+    
+    private static final byte MAGIC[] = {'C', 'T', 'X', 'D'};
+    
+    // Original format: children are stored as a plain list of pointers
+    public static final int V1 = 1;
+    
+    // Children are stored in a fixed-width table sorted by their first byte
+    public static final int V2 = 2;
+    
+    // Compressed values use variable-length encoding and pointers are stored
+    // as deltas with respect to a nearby base pointer
+    public static final int V3 = 3;
+    
+    // Top descendants are stored along with their weights
+    public static final int V4 = 4;
+    
+    // Corpora start with their encoding, and they can be compressed in blocks
+    public static final int V5 = 5;
+    
+    // Phrase and translation strings start with a tag telling whether they are
+    // stored as they are or taken from the corpus or the source phrase
+    public static final int V6 = 6;
+    
+    // The model is split into page-aligned sections listed in a table at the
+    // end of it (see InternalSections), instead of ending with the pointers to
+    // the root and the corpora
+    public static final int V7 = 7;
+    
+    public static final int CURRENT = V7;
+    
+    private InternalFormat() {}
+    
+    public static long writeHeader(InternalDataWriter writer) throws IOException {
+        final long pointer = writer.writeBytes(MAGIC);
+        writer.writeInt(CURRENT);
+        return pointer;
+    }
+    
+    public static int readVersion(FileChannel fc) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 4);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return readVersion(buffer);
+    }
+    
+    public static int readVersion(ByteBuffer buffer) {
+        if (buffer.get(0) == 0) {
+            return V1;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                throw new IllegalArgumentException("Unknown model format");
+            }
+        }
+        final int version = buffer.getInt(MAGIC.length);
+        if (version < V1 || version > CURRENT) {
+            throw new IllegalArgumentException("Unsupported model version: " + version);
+        }
+        return version;
+    }
+    
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Upper levels of the trie decoded into primitive arrays when the model is
+// opened. Nodes are numbered in breadth-first order, so node 0 is the root,
+// and the data of node i is stored in the ranges [xStart[i], xStart[i+1]).
+class InternalHotIndex {
+    
+    private static final int NODE_BYTES = 8 + 4 + 4 + 8 + 4; // pointer, 3 starts and phrase
+    private static final int CHILD_BYTES = 1 + 8 + 4; // first byte, pointer and node
+    private static final int TOP_DESCENDANT_BYTES = 8 + 8; // pointer and weight
+    
+    private final int nodes;
+    private final int levels;
+    private final long memoryBytes;
+    
+    private final long nodePointers[];
+    private final int substringStart[];
+    private final byte substrings[];
+    private final int childrenStart[];
+    private final byte childFirstBytes[];
+    private final long childPointers[];
+    private final int childNodes[]; // -1 if the child is not in the index
+    private final long phrasePointers[];
+    private final int topDescendantsStart[];
+    private final long topDescendantPointers[];
+    private final long topDescendantWeights[];
+    
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong resolvedLookups = new AtomicLong();
+    
+    private InternalHotIndex(InternalDataReader data, long rootPointer, int maxLevels, long maxBytes) {
+        final InternalNodeCursor cursor = new InternalNodeCursor(data);
+        
+        // Nodes are added to the queue (and thus numbered) as soon as their
+        // parent is decoded, but they are only part of the index if they are
+        // decoded themselves before running out of memory
+        long queue[] = new long[]{rootPointer};
+        int depths[] = new int[]{0};
+        int queued = 1;
+        
+        long nodePointers[] = new long[16];
+        int substringStart[] = new int[17];
+        byte substrings[] = new byte[64];
+        int childrenStart[] = new int[17];
+        byte childFirstBytes[] = new byte[64];
+        long childPointers[] = new long[64];
+        int childNodes[] = new int[64];
+        long phrasePointers[] = new long[16];
+        int topDescendantsStart[] = new int[17];
+        long topDescendantPointers[] = new long[64];
+        long topDescendantWeights[] = new long[64];
+        
+        int n = 0, m = 0, t = 0, s = 0, levels = 0;
+        long bytes = 0;
+        while (n < queued) {
+            final int depth = depths[n];
+            if (depth >= maxLevels) {
+                levels = maxLevels;
+                break;
+            }
+            cursor.moveTo(queue[n]);
+            final int childrenLength = cursor.getChildrenLength();
+            final int substringLength = cursor.getSubstringLength();
+            final int topDescendantLength = cursor.getTopDescendantLength();
+            final long nodeBytes = NODE_BYTES + substringLength +
+                    (long)CHILD_BYTES * childrenLength + (long)TOP_DESCENDANT_BYTES * topDescendantLength;
+            if (bytes + nodeBytes > maxBytes) {
+                levels = depth;
+                break;
+            }
+            bytes += nodeBytes;
+            levels = depth + 1;
+            
+            // Make room for the new node
+            if (n + 1 >= nodePointers.length) {
+                final int capacity = 2 * nodePointers.length;
+                nodePointers = Arrays.copyOf(nodePointers, capacity);
+                phrasePointers = Arrays.copyOf(phrasePointers, capacity);
+                substringStart = Arrays.copyOf(substringStart, capacity + 1);
+                childrenStart = Arrays.copyOf(childrenStart, capacity + 1);
+                topDescendantsStart = Arrays.copyOf(topDescendantsStart, capacity + 1);
+            }
+            if (s + substringLength > substrings.length) {
+                substrings = Arrays.copyOf(substrings, Math.max(2 * substrings.length, s + substringLength));
+            }
+            if (m + childrenLength > childPointers.length) {
+                final int capacity = Math.max(2 * childPointers.length, m + childrenLength);
+                childFirstBytes = Arrays.copyOf(childFirstBytes, capacity);
+                childPointers = Arrays.copyOf(childPointers, capacity);
+                childNodes = Arrays.copyOf(childNodes, capacity);
+            }
+            if (t + topDescendantLength > topDescendantPointers.length) {
+                final int capacity = Math.max(2 * topDescendantPointers.length, t + topDescendantLength);
+                topDescendantPointers = Arrays.copyOf(topDescendantPointers, capacity);
+                topDescendantWeights = Arrays.copyOf(topDescendantWeights, capacity);
+            }
+            if (queued + childrenLength > queue.length) {
+                final int capacity = Math.max(2 * queue.length, queued + childrenLength);
+                queue = Arrays.copyOf(queue, capacity);
+                depths = Arrays.copyOf(depths, capacity);
+            }
+            
+            // Copy the node
+            nodePointers[n] = cursor.getPointer();
+            phrasePointers[n] = cursor.getPhrasePointer();
+            for (int i = 0; i < substringLength; i++) {
+                substrings[s++] = cursor.getSubstringByte(i);
+            }
+            for (int i = 0; i < childrenLength; i++) {
+                childFirstBytes[m] = cursor.getChildFirstByte(i);
+                childPointers[m] = cursor.getChildPointer(i);
+                childNodes[m] = queued;
+                queue[queued] = childPointers[m];
+                depths[queued] = depth + 1;
+                queued++;
+                m++;
+            }
+            for (int i = 0; i < topDescendantLength; i++) {
+                topDescendantPointers[t] = cursor.nextTopDescendant();
+                topDescendantWeights[t++] = cursor.getTopDescendantWeight();
+            }
+            n++;
+            substringStart[n] = s;
+            childrenStart[n] = m;
+            topDescendantsStart[n] = t;
+        }
+        
+        // Children that did not make it into the index
+        for (int i = 0; i < m; i++) {
+            if (childNodes[i] >= n) childNodes[i] = -1;
+        }
+        
+        this.nodes = n;
+        this.levels = levels;
+        this.memoryBytes = bytes;
+        this.nodePointers = Arrays.copyOf(nodePointers, n);
+        this.phrasePointers = Arrays.copyOf(phrasePointers, n);
+        this.substringStart = Arrays.copyOf(substringStart, n + 1);
+        this.childrenStart = Arrays.copyOf(childrenStart, n + 1);
+        this.topDescendantsStart = Arrays.copyOf(topDescendantsStart, n + 1);
+        this.substrings = Arrays.copyOf(substrings, s);
+        this.childFirstBytes = Arrays.copyOf(childFirstBytes, m);
+        this.childPointers = Arrays.copyOf(childPointers, m);
+        this.childNodes = Arrays.copyOf(childNodes, m);
+        this.topDescendantPointers = Arrays.copyOf(topDescendantPointers, t);
+        this.topDescendantWeights = Arrays.copyOf(topDescendantWeights, t);
+    }
+    
+    public boolean isEmpty() {
+        return nodes == 0;
+    }
+    
+    public long getNodePointer(int node) {
+        return nodePointers[node];
+    }
+    
+    public int getSubstringLength(int node) {
+        return substringStart[node + 1] - substringStart[node];
+    }
+    
+    public boolean matches(int node, byte query[], int from, int n) {
+        final int start = substringStart[node];
+        for (int i = 0; i < n; i++) {
+            if (substrings[start + i] != query[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Returns the index of the child entry starting with the given byte or -1 if none
+    public int findChild(int node, byte b) {
+        final int key = b & 0xFF; // to unsigned int
+        int lo = childrenStart[node], hi = childrenStart[node + 1] - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int midKey = childFirstBytes[mid] & 0xFF; // to unsigned int
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    
+    public long getChildPointer(int child) {
+        return childPointers[child];
+    }
+    
+    public int getChildNode(int child) {
+        return childNodes[child];
+    }
+    
+    public long getPhrasePointer(int node) {
+        return phrasePointers[node];
+    }
+    
+    public int getTopDescendantLength(int node) {
+        return topDescendantsStart[node + 1] - topDescendantsStart[node];
+    }
+    
+    public long getTopDescendantPointer(int node, int i) {
+        return topDescendantPointers[topDescendantsStart[node] + i];
+    }
+    
+    public long getTopDescendantWeight(int node, int i) {
+        return topDescendantWeights[topDescendantsStart[node] + i];
+    }
+    
+    public void recordLookup(boolean resolved) {
+        lookups.incrementAndGet();
+        if (resolved) resolvedLookups.incrementAndGet();
+    }
+    
+    public HotIndexStats getStats() {
+        return new HotIndexStats(nodes, levels, memoryBytes, lookups.get(), resolvedLookups.get());
+    }
+    
+    public static InternalHotIndex build(InternalDataReader data, long rootPointer, int maxLevels, long maxBytes) {
+        return new InternalHotIndex(data, rootPointer, maxLevels, maxBytes);
+    }
+    
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+
+// Reads the lines of a stream as raw bytes, without decoding them. Lines are
+// terminated by \n, \r or \r\n, as in BufferedReader.readLine.
+class InternalLineReader {
+    
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    private final InputStream in;
+    private final byte buffer[] = new byte[BUFFER_SIZE];
+    private int pos = 0, limit = 0;
+    private boolean skipNewline = false; // Last line ended with \r
+    private byte line[] = new byte[256];
+    
+    public InternalLineReader(InputStream in) {
+        this.in = in;
+    }
+    
+    // Returns the next line without its terminator or null at the end of the stream
+    public byte[] readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (pos == limit) {
+                pos = 0;
+                limit = Math.max(0, in.read(buffer, 0, buffer.length));
+                if (limit == 0) {
+                    return length > 0 ? Arrays.copyOf(line, length) : null;
+                }
+            }
+            if (skipNewline) {
+                skipNewline = false;
+                if (buffer[pos] == '\n') {
+                    pos++;
+                    continue;
+                }
+            }
+            int end = pos;
+            while (end < limit && buffer[end] != '\n' && buffer[end] != '\r') end++;
+            if (length + end - pos > line.length) {
+                line = Arrays.copyOf(line, Math.max(2 * line.length, length + end - pos));
+            }
+            System.arraycopy(buffer, pos, line, length, end - pos);
+            length += end - pos;
+            pos = end;
+            if (end < limit) {
+                skipNewline = buffer[end] == '\r';
+                pos++;
+                return Arrays.copyOf(line, length);
+            }
+        }
+    }
+    
+}
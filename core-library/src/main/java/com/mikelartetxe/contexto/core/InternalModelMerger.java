@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+
+// Merges the phrases of several models into those of a single model, as if
+// it had been built from all their phrase pairs, without going through them
+// again. The tries are walked in parallel in the order of their strings, so
+// that phrases come out sorted one at a time, and the corpora are meant to be
+// concatenated, so the sentence ids of each model are shifted by the
+// sentences of the models before it. Translations are merged by their counts
+// and the same thresholds as in InternalPhrasePairMerger are applied again,
+// with the examples drawn from those of each model in proportion to its
+// counts. As models only keep the most frequent translations, the result is
+// an approximation: translations that a model grouped in $OTHERS$ stay there,
+// and phrases that a model skipped are missing from its counts. Shards keep
+// everything, so merging them gives the same translations and counts as
+// InternalPhrasePairMerger would, and each example sample is still drawn
+// uniformly from all the examples of the translation.
+class InternalModelMerger {
+    
+    private static final long SEED = 0;
+    
+    private final List<ContextDictionary> models;
+    private final boolean keepAll;
+    private final int firstSentenceIds[];
+    private final PriorityQueue<TrieWalk> queue;
+    private final Random random = new Random(SEED);
+    
+    // If keepAll is set, the merged translations are all kept as they are, to
+    // merge shards into a bigger shard (see BuildOptions.setShard)
+    public InternalModelMerger(List<ContextDictionary> models, boolean keepAll) {
+        this.models = models;
+        this.keepAll = keepAll;
+        firstSentenceIds = new int[models.size()];
+        queue = new PriorityQueue<>(Math.max(1, models.size()));
+        long sentences = 0;
+        for (int i = 0; i < models.size(); i++) {
+            final ContextDictionary model = models.get(i);
+            if (!model.hasCorpora()) {
+                throw new IllegalArgumentException("The corpora of the models must be loaded");
+            }
+            if (model.getSrcCorpus().size() != model.getTrgCorpus().size()) {
+                throw new IllegalArgumentException("Corpora of different sizes");
+            }
+            firstSentenceIds[i] = (int)sentences;
+            sentences += model.getSrcCorpus().size();
+            if (sentences > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many sentences");
+            }
+            final TrieWalk walk = new TrieWalk(i, model.indexCursor());
+            if (walk.advance()) queue.add(walk);
+        }
+    }
+    
+    // Sentences of the source and target side of all the models, one per line
+    public InputStream getSrcCorpus() {
+        return new CorpusStream(true);
+    }
+    
+    public InputStream getTrgCorpus() {
+        return new CorpusStream(false);
+    }
+    
+    // Returns the next phrase or null once all of them have been merged.
+    // Phrases where all the translations go to $OTHERS$ are skipped.
+    public InternalPhrase next() {
+        while (!queue.isEmpty()) {
+            final byte string[] = queue.peek().string;
+            final List<InternalPhrase> phrases = new ArrayList<>();
+            final List<Integer> owners = new ArrayList<>();
+            while (!queue.isEmpty() && Arrays.equals(queue.peek().string, string)) {
+                final TrieWalk walk = queue.poll();
+                phrases.add(models.get(walk.model).readPhrase(walk.phrasePointer));
+                owners.add(walk.model);
+                if (walk.advance()) queue.add(walk);
+            }
+            final InternalPhrase phrase = merge(string, phrases, owners);
+            if (phrase != null) {
+                return phrase;
+            }
+        }
+        return null;
+    }
+    
+    private InternalPhrase merge(byte string[], List<InternalPhrase> phrases, List<Integer> owners) {
+        final Map<ByteBuffer, Translation> translations = new LinkedHashMap<>();
+        final Translation others = new Translation(InternalPhrasePairMerger.OTHERS);
+        long weight = 0;
+        for (int i = 0; i < phrases.size(); i++) {
+            weight += phrases.get(i).getWeight();
+            final int firstSentenceId = firstSentenceIds[owners.get(i)];
+            for (InternalTranslation translation : phrases.get(i).getTranslations()) {
+                final byte bytes[] = translation.getBytes();
+                Translation t;
+                if (Arrays.equals(bytes, InternalPhrasePairMerger.OTHERS)) {
+                    t = others;
+                } else if ((t = translations.get(ByteBuffer.wrap(bytes))) == null) {
+                    t = new Translation(bytes);
+                    translations.put(ByteBuffer.wrap(bytes), t);
+                }
+                t.add(translation, firstSentenceId);
+            }
+        }
+        
+        final List<Translation> sorted = new ArrayList<>(translations.values());
+        Collections.sort(sorted);
+        final List<InternalTranslation> kept = new ArrayList<>();
+        for (Translation translation : sorted) {
+            if (keepAll || (translation.count >= InternalPhrasePairMerger.MIN_EXAMPLES_PER_TRANSLATION &&
+                    kept.size() < InternalPhrasePairMerger.MAX_TRANSLATIONS_PER_PHRASE)) {
+                kept.add(translation.merge(random));
+            } else {
+                others.addAll(translation);
+            }
+        }
+        if (kept.isEmpty()) {
+            return null;
+        }
+        if (others.count > 0) {
+            kept.add(others.merge(random));
+        }
+        return new InternalPhrase(string, weight, kept.toArray(new InternalTranslation[kept.size()]));
+    }
+    
+    
+    // Translation being merged, with the examples each model kept for it
+    private static class Translation implements Comparable<Translation> {
+        
+        public final byte string[];
+        public long count = 0;
+        private final List<InternalPhrasePairExample[]> samples = new ArrayList<>();
+        private final List<Long> counts = new ArrayList<>();
+        
+        public Translation(byte string[]) {
+            this.string = string;
+        }
+        
+        public void add(InternalTranslation translation, int firstSentenceId) {
+            final InternalPhrasePairExample examples[] = new InternalPhrasePairExample[translation.getExamples().size()];
+            for (int i = 0; i < examples.length; i++) {
+                examples[i] = translation.getExamples().get(i).shift(firstSentenceId);
+            }
+            samples.add(examples);
+            counts.add(translation.getNumberOfOccurrences());
+            count += translation.getNumberOfOccurrences();
+        }
+        
+        public void addAll(Translation translation) {
+            samples.addAll(translation.samples);
+            counts.addAll(translation.counts);
+            count += translation.count;
+        }
+        
+        // The examples of each model are already a sample in random order, so
+        // those of a single model are kept as they are
+        public InternalTranslation merge(Random random) {
+            if (samples.size() == 1) {
+                final InternalPhrasePairExample sample[] = samples.get(0);
+                return new InternalTranslation(string, count, Arrays.copyOf(sample,
+                        Math.min(sample.length, InternalPhrasePairMerger.MAX_EXAMPLES_PER_TRANSLATION)));
+            }
+            final long c[] = new long[counts.size()];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = counts.get(i);
+            }
+            return new InternalTranslation(string, count, InternalPhrasePairMerger.sample(
+                    samples.toArray(new InternalPhrasePairExample[samples.size()][]), c, random));
+        }
+        
+        @Override
+        public int compareTo(Translation other) {
+            // More examples first, and higher string first in case of tie
+            if (count != other.count) return count > other.count ? -1 : 1;
+            return InternalPhrasePairMerger.UNSIGNED_BYTES.compare(other.string, string);
+        }
+        
+    }
+    
+    // Depth-first walk over the phrases of a trie in the order of their
+    // strings, as unsigned bytes
+    private static class TrieWalk implements Comparable<TrieWalk> {
+        
+        public final int model;
+        public byte string[]; // Of the current phrase
+        public long phrasePointer;
+        private final InternalNodeCursor cursor;
+        private final Deque<Node> stack = new ArrayDeque<>();
+        
+        public TrieWalk(int model, InternalNodeCursor root) {
+            this.model = model;
+            this.cursor = root;
+            stack.push(new Node(root.getPointer(), new byte[0]));
+        }
+        
+        // Moves to the next phrase, returning false if there are no more
+        public boolean advance() {
+            while (!stack.isEmpty()) {
+                final Node node = stack.pop();
+                cursor.moveTo(node.pointer);
+                final byte nodeString[] = Arrays.copyOf(node.prefix, node.prefix.length + cursor.getSubstringLength());
+                for (int i = node.prefix.length; i < nodeString.length; i++) {
+                    nodeString[i] = cursor.getSubstringByte(i - node.prefix.length);
+                }
+                final long pointer = cursor.getPhrasePointer();
+                
+                // Children are pushed in reverse order of their first byte,
+                // which they are sorted by except in V1 models
+                final Node children[] = new Node[cursor.getChildrenLength()];
+                for (int i = 0; i < children.length; i++) {
+                    children[i] = new Node(cursor.getChildPointer(i), nodeString);
+                }
+                for (int i = 0; i < children.length; i++) {
+                    cursor.moveTo(children[i].pointer);
+                    children[i].firstByte = cursor.getSubstringLength() == 0 ? -1 : cursor.getSubstringByte(0) & 0xFF;
+                }
+                Arrays.sort(children, BY_FIRST_BYTE);
+                for (int i = children.length - 1; i >= 0; i--) {
+                    stack.push(children[i]);
+                }
+                if (pointer != 0) {
+                    string = nodeString;
+                    phrasePointer = pointer;
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        public int compareTo(TrieWalk other) {
+            final int res = InternalPhrasePairMerger.UNSIGNED_BYTES.compare(string, other.string);
+            return res != 0 ? res : model - other.model;
+        }
+        
+    }
+    
+    private static class Node {
+        
+        public final long pointer;
+        public final byte prefix[]; // String up to the node
+        public int firstByte;
+        
+        public Node(long pointer, byte prefix[]) {
+            this.pointer = pointer;
+            this.prefix = prefix;
+        }
+        
+    }
+    
+    private static final Comparator<Node> BY_FIRST_BYTE = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return a.firstByte - b.firstByte;
+        }
+    };
+    
+    // Concatenation of the sentences of all the models, each followed by \n
+    private class CorpusStream extends InputStream {
+        
+        private final boolean src;
+        private int model = 0, sentence = 0;
+        private byte line[] = new byte[0];
+        private int pos = 0;
+        
+        public CorpusStream(boolean src) {
+            this.src = src;
+        }
+        
+        private boolean fill() {
+            while (pos == line.length) {
+                while (model < models.size() && sentence == corpus(model).size()) {
+                    model++;
+                    sentence = 0;
+                }
+                if (model == models.size()) return false;
+                final byte bytes[] = corpus(model).getSentenceBytes(sentence++);
+                line = Arrays.copyOf(bytes, bytes.length + 1);
+                line[bytes.length] = '\n';
+                pos = 0;
+            }
+            return true;
+        }
+        
+        private InternalCorpus corpus(int model) {
+            return src ? models.get(model).getSrcCorpus() : models.get(model).getTrgCorpus();
+        }
+        
+        @Override
+        public int read() {
+            return fill() ? line[pos++] & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte b[], int off, int len) {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            final int n = Math.min(len, line.length - pos);
+            System.arraycopy(line, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        
+    }
+    
+}
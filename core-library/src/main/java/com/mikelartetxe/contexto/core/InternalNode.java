@@ -18,57 +18,67 @@
 package com.mikelartetxe.contexto.core;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
 
 
 class InternalNode {
     
-    private static final int TOP_DESCENDANTS = 10;
+    public static final int DEFAULT_TOP_DESCENDANTS = 10;
     
     private final byte[] substring;
+    private final byte[] childrenFirstBytes; // null for legacy (V1) nodes
     private final long[] childrenPointers;
     private final long phrasePointer;
     private final long[] topDescendantPointers;
+    private final long[] topDescendantWeights;
     
     private InternalNode(Builder builder, int index) {
         substring = Arrays.copyOfRange(builder.string, index, builder.string.length);
-        childrenPointers = new long[builder.childrenPointers.size()];
-        for (int i = 0; i < childrenPointers.length; i++) {
-            childrenPointers[i] = builder.childrenPointers.get(i);
-        }
+        childrenFirstBytes = Arrays.copyOf(builder.childrenFirstBytes, builder.childrenLength);
+        childrenPointers = Arrays.copyOf(builder.childrenPointers, builder.childrenLength);
         phrasePointer = builder.phrasePointer;
-        topDescendantPointers = new long[builder.topDescendants.size()];
-        for (int i = 0; i < topDescendantPointers.length; i++) {
-            topDescendantPointers[i] = builder.topDescendants.get(i).pointer;
-        }
+        topDescendantPointers = new long[builder.topDescendantsLength];
+        topDescendantWeights = new long[builder.topDescendantsLength];
+        builder.sortTopDescendants(topDescendantPointers, topDescendantWeights);
+    }
+    
+    private InternalNode(byte[] substring, byte[] childrenFirstBytes, long[] childrenPointers,
+            long phrasePointer, long[] topDescendantPointers, long[] topDescendantWeights) {
+        this.substring = substring;
+        this.childrenFirstBytes = childrenFirstBytes;
+        this.childrenPointers = childrenPointers;
+        this.phrasePointer = phrasePointer;
+        this.topDescendantPointers = topDescendantPointers;
+        this.topDescendantWeights = topDescendantWeights;
     }
     
     private InternalNode(InternalDataReader data) {
+        final InternalNodeCursor cursor = new InternalNodeCursor(data).moveTo(data.getPointer());
+        
         // Read substring
-        final int substringLength = data.readCompressedInt();
-        substring = new byte[substringLength];
-        for (int i = 0; i < substringLength; i++) {
-            substring[i] = data.readByte();
+        substring = new byte[cursor.getSubstringLength()];
+        for (int i = 0; i < substring.length; i++) {
+            substring[i] = cursor.getSubstringByte(i);
         }
         
-        // Read children pointers
-        final int childrenLength = data.readUnsignedByte();
+        // Read children
+        final int childrenLength = cursor.getChildrenLength();
+        childrenFirstBytes = cursor.hasChildFirstBytes() ? new byte[childrenLength] : null;
         childrenPointers = new long[childrenLength];
         for (int i = 0; i < childrenLength; i++) {
-            childrenPointers[i] = data.readCompressedPointer();
+            if (childrenFirstBytes != null) childrenFirstBytes[i] = cursor.getChildFirstByte(i);
+            childrenPointers[i] = cursor.getChildPointer(i);
         }
         
         // Read phrase pointer
-        phrasePointer = data.readCompressedPointer();
+        phrasePointer = cursor.getPhrasePointer();
         
         // Read top descendant pointers
-        final int topDescendantLength = data.readCompressedInt();
-        topDescendantPointers = new long[topDescendantLength];
-        for (int i = 0; i < topDescendantLength; i++) {
-            topDescendantPointers[i] = data.readCompressedPointer();
+        topDescendantPointers = new long[cursor.getTopDescendantLength()];
+        topDescendantWeights = new long[cursor.getTopDescendantLength()];
+        for (int i = 0; i < topDescendantPointers.length; i++) {
+            topDescendantPointers[i] = cursor.nextTopDescendant();
+            topDescendantWeights[i] = cursor.getTopDescendantWeight();
         }
     }
     
@@ -78,16 +88,37 @@ class InternalNode {
         final long pointer = data.writeCompressedInt(substring.length);
         for (final byte b : substring) data.writeByte(b);
         
-        // Write children pointers
-        data.writeByte(childrenPointers.length);
-        for (final long p : childrenPointers) data.writeCompressedPointer(p);
+        // Write children table (fixed-width entries sorted by first byte so
+        // that they can be binary searched, with pointers relative to this node)
+        data.writeCompressedInt(childrenPointers.length);
+        if (childrenPointers.length > 0) {
+            long maxDelta = 0;
+            for (final long p : childrenPointers) {
+                maxDelta = Math.max(maxDelta, InternalDataWriter.zigzag(p - pointer));
+            }
+            final int width = InternalDataWriter.byteWidth(maxDelta);
+            data.writeByte(width);
+            for (int i = 0; i < childrenPointers.length; i++) {
+                data.writeByte(childrenFirstBytes[i]);
+                data.writeLong(InternalDataWriter.zigzag(childrenPointers[i] - pointer), width);
+            }
+        }
         
         // Write phrase pointer
-        data.writeCompressedPointer(phrasePointer);
+        data.writeCompressedPointer(phrasePointer, pointer);
         
-        // Write top descendant pointers
+        // Write top descendant pointers (each one relative to the previous one)
+        // and weights (as the difference with the previous one, as they are
+        // sorted in decreasing order)
         data.writeCompressedInt(topDescendantPointers.length);
-        for (final long p : topDescendantPointers) data.writeCompressedPointer(p);
+        long prevPointer = pointer;
+        long prevWeight = topDescendantWeights.length > 0 ? topDescendantWeights[0] : 0;
+        for (int i = 0; i < topDescendantPointers.length; i++) {
+            data.writeCompressedPointer(topDescendantPointers[i], prevPointer);
+            data.writeCompressedLong(i == 0 ? topDescendantWeights[i] : prevWeight - topDescendantWeights[i]);
+            prevPointer = topDescendantPointers[i];
+            prevWeight = topDescendantWeights[i];
+        }
         
         // Return the pointer to the first written byte
         return pointer;
@@ -97,72 +128,98 @@ class InternalNode {
         return new InternalNode(data);
     }
     
-    public static byte readFirstByte(InternalDataReader data) {
-        final int substringLength = data.readCompressedInt();
-        if (substringLength <= 0) {
-            throw new IllegalArgumentException("Empty substring");
-        }
-        return data.readByte();
+    // Number of bytes taken by the node if written at the given pointer
+    public int size(long pointer) throws IOException {
+        final InternalDataWriter counter = new InternalDataWriter(InternalDataWriter.NULL_OUTPUT_STREAM, pointer);
+        write(counter);
+        return (int)(counter.getPointer() - pointer);
+    }
+    
+    public int getChildrenLength() {
+        return childrenPointers.length;
+    }
+    
+    public long getChildPointer(int i) {
+        return childrenPointers[i];
     }
     
-    public List<String> autocomplete(InternalDataReader data, byte query[]) {
-        final InternalNode node = searchNode(data, query, 0, false);
-        if (node == null) return Collections.EMPTY_LIST;
-        final List<String> res = new ArrayList<>();
-        for (long ptr : node.topDescendantPointers) {
-            res.add(data.seek(ptr).readPhrase().getString());
+    // Same node with the pointer to each child replaced by the given one
+    public InternalNode relocate(long newChildrenPointers[]) {
+        if (newChildrenPointers.length != childrenPointers.length) {
+            throw new IllegalArgumentException("Wrong number of children");
         }
-        return res;
+        return new InternalNode(substring, childrenFirstBytes, newChildrenPointers,
+                phrasePointer, topDescendantPointers, topDescendantWeights);
     }
     
-    public InternalPhrase search(InternalDataReader data, byte query[]) {
-        final InternalNode node = searchNode(data, query, 0, true);
-        final long ptr = node == null ? 0 : node.phrasePointer;
-        return ptr == 0 ? null : data.seek(ptr).readPhrase();
+    // Writes the node with absolute pointers and no other context, so that it
+    // can be stored elsewhere until its position in the model is known
+    public long writeRecord(InternalDataWriter data) throws IOException {
+        final long pointer = data.writeCompressedInt(substring.length);
+        data.writeBytes(substring);
+        data.writeCompressedInt(childrenPointers.length);
+        for (int i = 0; i < childrenPointers.length; i++) {
+            data.writeByte(childrenFirstBytes[i]);
+            data.writeCompressedPointer(childrenPointers[i]);
+        }
+        data.writeCompressedPointer(phrasePointer);
+        data.writeCompressedInt(topDescendantPointers.length);
+        for (int i = 0; i < topDescendantPointers.length; i++) {
+            data.writeCompressedPointer(topDescendantPointers[i]);
+            data.writeCompressedLong(topDescendantWeights[i]);
+        }
+        return pointer;
     }
     
-    private InternalNode searchNode(InternalDataReader data, byte query[], int from, boolean exact) {
-        final int queryMissing = query.length - from;
-        if (substring.length > queryMissing && exact) {
-            return null;
-        }
-        final int n = substring.length > queryMissing ? queryMissing : substring.length;
-        boolean mismatch = false;
-        for (int i = 0; i < n; i++) {
-            if (substring[i] != query[from + i]) {
-                mismatch = true;
-                break;
-            }
+    public static InternalNode readRecord(InternalDataReader data) {
+        final byte substring[] = data.readBytes(data.readCompressedInt());
+        final int childrenLength = data.readCompressedInt();
+        final byte childrenFirstBytes[] = new byte[childrenLength];
+        final long childrenPointers[] = new long[childrenLength];
+        for (int i = 0; i < childrenLength; i++) {
+            childrenFirstBytes[i] = data.readByte();
+            childrenPointers[i] = data.readCompressedPointer();
         }
-        if (mismatch) {
-            return null;
-        } else if (substring.length >= queryMissing) {
-            return this;
-        } else {
-            // TODO Implement binary search for better performance
-            for (long childPointer : childrenPointers) {
-                final byte b = data.seek(childPointer).readFirstByteFromNode();
-                if (b == query[from + substring.length]) {
-                    final InternalNode node = data.seek(childPointer).readNode();
-                    return node.searchNode(data, query, from + substring.length, exact);
-                }
-            }
-            return null;
+        final long phrasePointer = data.readCompressedPointer();
+        final int topDescendantsLength = data.readCompressedInt();
+        final long topDescendantPointers[] = new long[topDescendantsLength];
+        final long topDescendantWeights[] = new long[topDescendantsLength];
+        for (int i = 0; i < topDescendantsLength; i++) {
+            topDescendantPointers[i] = data.readCompressedPointer();
+            topDescendantWeights[i] = data.readCompressedLong();
         }
+        return new InternalNode(substring, childrenFirstBytes, childrenPointers,
+                phrasePointer, topDescendantPointers, topDescendantWeights);
+    }
+    
+    
+    // Destination of the nodes of a trie being built, which returns the
+    // pointer that their parents refer to them with
+    public interface Sink {
+        long write(InternalNode node) throws IOException;
     }
     
     
+    // Node under construction. Its top descendants are kept in a bounded
+    // min-heap ordered by weight and pointer, so the worst of them is at the
+    // root and is replaced whenever a better one is found.
     public static class Builder {
         
+        private static final int OBJECT_BYTES = 16 + 8 * 7; // Estimated header and fields
+        
         private final byte[] string;
-        private final List<Long> childrenPointers;
+        private final int maxTopDescendants;
+        private byte[] childrenFirstBytes = new byte[0];
+        private long[] childrenPointers = new long[0];
+        private int childrenLength = 0;
         private long phrasePointer;
-        private List<WeightedPointer> topDescendants;
+        private long[] topDescendantPointers = new long[0];
+        private long[] topDescendantWeights = new long[0];
+        private int topDescendantsLength = 0;
         
-        public Builder(byte[] string) {
+        public Builder(byte[] string, int maxTopDescendants) {
             this.string = Arrays.copyOf(string, string.length);
-            this.childrenPointers = new ArrayList<>();
-            this.topDescendants = new ArrayList<>();
+            this.maxTopDescendants = maxTopDescendants;
         }
         
         public int length() {
@@ -173,11 +230,34 @@ class InternalNode {
             return string;
         }
         
-        public void addChild(Builder childBuilder, int index, InternalDataWriter writer) throws IOException {
-            topDescendants.addAll(childBuilder.topDescendants);
-            updateTopDescendants();
-            final long childPointer = writer.writeNode(childBuilder.build(index));
-            childrenPointers.add(childPointer);
+        // Approximate heap memory used by the builder
+        public long memoryBytes() {
+            return OBJECT_BYTES + string.length + childrenFirstBytes.length +
+                    8L * childrenPointers.length + 16L * topDescendantPointers.length;
+        }
+        
+        public void addChild(Builder childBuilder, int index, Sink sink) throws IOException {
+            final byte firstByte = childBuilder.string[index];
+            if (childrenLength > 0 && (childrenFirstBytes[childrenLength - 1] & 0xFF) >= (firstByte & 0xFF)) {
+                throw new IllegalStateException("Children must be added in order");
+            }
+            final InternalNode child = childBuilder.build(index);
+            
+            // The top descendants of the child are sorted in decreasing order,
+            // so we can stop as soon as one does not make it into the heap
+            for (int i = 0; i < child.topDescendantPointers.length; i++) {
+                if (!offerTopDescendant(child.topDescendantPointers[i], child.topDescendantWeights[i])) break;
+            }
+            
+            final long childPointer = sink.write(child);
+            if (childrenLength == childrenPointers.length) {
+                final int capacity = Math.max(4, 2 * childrenLength);
+                childrenFirstBytes = Arrays.copyOf(childrenFirstBytes, capacity);
+                childrenPointers = Arrays.copyOf(childrenPointers, capacity);
+            }
+            childrenFirstBytes[childrenLength] = firstByte;
+            childrenPointers[childrenLength] = childPointer;
+            childrenLength++;
         }
         
         public void setPhrase(long pointer, long weight) {
@@ -188,42 +268,76 @@ class InternalNode {
                 throw new IllegalArgumentException("Null pointer");
             }
             phrasePointer = pointer;
-            topDescendants.add(new WeightedPointer(pointer, weight));
-            updateTopDescendants();
-        }
-        
-        private void updateTopDescendants() {
-            Collections.sort(topDescendants);
-            final int n = topDescendants.size() > TOP_DESCENDANTS ?
-                    TOP_DESCENDANTS :
-                    topDescendants.size();
-            final List<WeightedPointer> newTop = new ArrayList<>(n);
-            for (int i = 0; i < n; i++) {
-                newTop.add(topDescendants.get(topDescendants.size() - i - 1));
-            }
-            topDescendants = newTop;
+            offerTopDescendant(pointer, weight);
         }
         
-        public InternalNode build(int index) {
-            return new InternalNode(this, index);
+        // Adds the given phrase to the top descendants if it is better than
+        // the worst of them, returning false otherwise
+        private boolean offerTopDescendant(long pointer, long weight) {
+            if (topDescendantsLength < maxTopDescendants) {
+                if (topDescendantsLength == topDescendantPointers.length) {
+                    final int capacity = Math.min(maxTopDescendants, Math.max(4, 2 * topDescendantsLength));
+                    topDescendantPointers = Arrays.copyOf(topDescendantPointers, capacity);
+                    topDescendantWeights = Arrays.copyOf(topDescendantWeights, capacity);
+                }
+                
+                // Sift up
+                int i = topDescendantsLength++;
+                while (i > 0) {
+                    final int parent = (i - 1) >>> 1;
+                    if (compare(topDescendantWeights[parent], topDescendantPointers[parent], weight, pointer) <= 0) break;
+                    topDescendantPointers[i] = topDescendantPointers[parent];
+                    topDescendantWeights[i] = topDescendantWeights[parent];
+                    i = parent;
+                }
+                topDescendantPointers[i] = pointer;
+                topDescendantWeights[i] = weight;
+                return true;
+            }
+            if (compare(weight, pointer, topDescendantWeights[0], topDescendantPointers[0]) <= 0) {
+                return false;
+            }
+            replaceMin(pointer, weight, topDescendantsLength);
+            return true;
         }
         
-    }
-    
-    
-    private static class WeightedPointer implements Comparable<WeightedPointer> {
+        // Replaces the root of the first n entries of the heap and sifts it down
+        private void replaceMin(long pointer, long weight, int n) {
+            int i = 0;
+            while (true) {
+                int child = 2*i + 1;
+                if (child >= n) break;
+                if (child + 1 < n && compare(topDescendantWeights[child + 1], topDescendantPointers[child + 1],
+                        topDescendantWeights[child], topDescendantPointers[child]) < 0) {
+                    child++;
+                }
+                if (compare(weight, pointer, topDescendantWeights[child], topDescendantPointers[child]) <= 0) break;
+                topDescendantPointers[i] = topDescendantPointers[child];
+                topDescendantWeights[i] = topDescendantWeights[child];
+                i = child;
+            }
+            topDescendantPointers[i] = pointer;
+            topDescendantWeights[i] = weight;
+        }
         
-        public final long pointer, weight;
+        // Copies the top descendants in decreasing order, emptying the heap
+        private void sortTopDescendants(long pointers[], long weights[]) {
+            for (int n = topDescendantsLength; n > 0; n--) {
+                pointers[n - 1] = topDescendantPointers[0];
+                weights[n - 1] = topDescendantWeights[0];
+                replaceMin(topDescendantPointers[n - 1], topDescendantWeights[n - 1], n - 1);
+            }
+            topDescendantsLength = 0;
+        }
         
-        public WeightedPointer(long pointer, long weight) {
-            this.pointer = pointer;
-            this.weight = weight;
+        // Orders by weight and then by pointer
+        private static int compare(long weight1, long pointer1, long weight2, long pointer2) {
+            final int aux = Long.compare(weight1, weight2);
+            return aux == 0 ? Long.compare(pointer1, pointer2) : aux;
         }
-
-        @Override
-        public int compareTo(WeightedPointer other) {
-            final int aux = Long.compare(this.weight, other.weight);
-            return aux == 0 ? Long.compare(this.pointer, other.pointer) : aux;
+        
+        public InternalNode build(int index) {
+            return new InternalNode(this, index);
         }
         
     }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+
+// Flyweight view of a serialized node. Moving the cursor only decodes the
+// node header, and the substring and children table are read in place, so
+// that the trie can be traversed without allocating any object.
+// If a hot index is given, nodes in it are served from the heap instead.
+// Cursors are not thread-safe.
+class InternalNodeCursor {
+    
+    private final InternalDataReader data;
+    private final InternalHotIndex hotIndex;
+    
+    private int hotNode = -1; // Index of the current node in the hot index or -1
+    private long node;
+    private long substringPointer;
+    private int substringLength;
+    private long childrenPointer;
+    private int childrenLength;
+    private boolean legacyChildren; // V1 nodes store a plain list of pointers
+    private boolean relativeChildPointers;
+    private int childPointerWidth;
+    private long phrasePointer;
+    private int topDescendantLength;
+    private long topDescendantsPointer;
+    private int topDescendantIndex;
+    private long prevTopDescendant;
+    private long topDescendantWeight;
+    
+    public InternalNodeCursor(InternalDataReader data) {
+        this(data, null);
+    }
+    
+    public InternalNodeCursor(InternalDataReader data, InternalHotIndex hotIndex) {
+        this.data = data.seek(0);
+        this.hotIndex = hotIndex == null || hotIndex.isEmpty() ? null : hotIndex;
+    }
+    
+    public InternalNodeCursor moveToRoot(long rootPointer) {
+        return hotIndex == null ? moveTo(rootPointer) : moveToHotNode(0);
+    }
+    
+    private InternalNodeCursor moveToHotNode(int i) {
+        hotNode = i;
+        node = hotIndex.getNodePointer(i);
+        phrasePointer = hotIndex.getPhrasePointer(i);
+        topDescendantLength = hotIndex.getTopDescendantLength(i);
+        topDescendantIndex = 0;
+        topDescendantWeight = -1;
+        return this;
+    }
+    
+    // Nodes served from the hot index only have their phrase and top
+    // descendants at hand, so they are decoded on demand for anything else
+    private void decode() {
+        if (hotNode >= 0) moveTo(node);
+    }
+    
+    public InternalNodeCursor moveTo(long pointer) {
+        hotNode = -1;
+        node = pointer;
+        data.setPointer(pointer);
+        
+        // Substring
+        substringLength = data.readCompressedInt();
+        substringPointer = data.getPointer();
+        data.skip(substringLength);
+        
+        // Children
+        final int version = data.getVersion();
+        legacyChildren = version == InternalFormat.V1;
+        relativeChildPointers = version >= InternalFormat.V3;
+        if (legacyChildren) {
+            childrenLength = data.readUnsignedByte();
+            childPointerWidth = 8;
+        } else if (!relativeChildPointers) {
+            childrenLength = data.readCompressedInt();
+            childPointerWidth = 8;
+        } else {
+            childrenLength = data.readCompressedInt();
+            childPointerWidth = childrenLength == 0 ? 0 : data.readUnsignedByte();
+        }
+        childrenPointer = data.getPointer();
+        data.skip((long)childrenLength * childEntrySize());
+        
+        // Phrase
+        phrasePointer = data.readCompressedPointer(node);
+        
+        // Top descendants
+        topDescendantLength = data.readCompressedInt();
+        topDescendantsPointer = data.getPointer();
+        topDescendantIndex = 0;
+        prevTopDescendant = node;
+        topDescendantWeight = -1;
+        
+        return this;
+    }
+    
+    public long getPointer() {
+        return node;
+    }
+    
+    // Moves the cursor down to the node matching the given query, either
+    // exactly or as a prefix. Returns false if there is no such node, in
+    // which case the cursor is left at the deepest node that was visited.
+    public boolean descend(byte query[], boolean exact) {
+        int from = 0;
+        if (hotNode >= 0) {
+            int i = hotNode;
+            while (true) {
+                final int length = hotIndex.getSubstringLength(i);
+                final int queryMissing = query.length - from;
+                if (length > queryMissing && exact) {
+                    moveToHotNode(i);
+                    hotIndex.recordLookup(true);
+                    return false;
+                }
+                final int n = length > queryMissing ? queryMissing : length;
+                if (!hotIndex.matches(i, query, from, n)) {
+                    moveToHotNode(i);
+                    hotIndex.recordLookup(true);
+                    return false;
+                } else if (length >= queryMissing) {
+                    moveToHotNode(i);
+                    hotIndex.recordLookup(true);
+                    return true;
+                }
+                from += length;
+                final int child = hotIndex.findChild(i, query[from]);
+                if (child < 0) {
+                    moveToHotNode(i);
+                    hotIndex.recordLookup(true);
+                    return false;
+                } else if (hotIndex.getChildNode(child) < 0) {
+                    // Continue from the model
+                    hotIndex.recordLookup(false);
+                    moveTo(hotIndex.getChildPointer(child));
+                    break;
+                }
+                i = hotIndex.getChildNode(child);
+            }
+        }
+        while (true) {
+            final int queryMissing = query.length - from;
+            if (substringLength > queryMissing && exact) {
+                return false;
+            }
+            final int n = substringLength > queryMissing ? queryMissing : substringLength;
+            if (!matches(query, from, n)) {
+                return false;
+            } else if (substringLength >= queryMissing) {
+                return true;
+            }
+            from += substringLength;
+            final long childPointer = findChild(query[from]);
+            if (childPointer == 0) {
+                return false;
+            }
+            moveTo(childPointer);
+        }
+    }
+    
+    public int getSubstringLength() {
+        decode();
+        return substringLength;
+    }
+    
+    public byte getSubstringByte(int i) {
+        decode();
+        return data.setPointer(substringPointer + i).readByte();
+    }
+    
+    // Compares the first n bytes of the substring with query[from:from+n]
+    public boolean matches(byte query[], int from, int n) {
+        decode();
+        data.setPointer(substringPointer);
+        for (int i = 0; i < n; i++) {
+            if (data.readByte() != query[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public int getChildrenLength() {
+        decode();
+        return childrenLength;
+    }
+    
+    // Legacy (V1) nodes do not store the first byte of their children
+    public boolean hasChildFirstBytes() {
+        decode();
+        return !legacyChildren;
+    }
+    
+    public byte getChildFirstByte(int i) {
+        decode();
+        if (legacyChildren) {
+            data.setPointer(getChildPointer(i)).readCompressedInt(); // Skip substring length
+            return data.readByte();
+        }
+        return data.setPointer(childrenPointer + (long)i * childEntrySize()).readByte();
+    }
+    
+    public long getChildPointer(int i) {
+        decode();
+        if (legacyChildren) {
+            return data.setPointer(childrenPointer + 8L*i).readCompressedPointer();
+        }
+        data.setPointer(childrenPointer + (long)i * childEntrySize() + 1);
+        return readChildPointer();
+    }
+    
+    // Returns the pointer to the child starting with the given byte or 0 if none
+    public long findChild(byte b) {
+        decode();
+        if (legacyChildren) {
+            // Legacy nodes do not store the first bytes, so we need to read each child
+            for (int i = 0; i < childrenLength; i++) {
+                final long childPointer = getChildPointer(i);
+                data.setPointer(childPointer);
+                if (data.readCompressedInt() > 0 && data.readByte() == b) {
+                    return childPointer;
+                }
+            }
+            return 0;
+        }
+        final int entrySize = childEntrySize();
+        final int key = b & 0xFF; // to unsigned int
+        int lo = 0, hi = childrenLength - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int midKey = data.setPointer(childrenPointer + (long)mid * entrySize).readUnsignedByte();
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return readChildPointer();
+            }
+        }
+        return 0;
+    }
+    
+    public long getPhrasePointer() {
+        return phrasePointer;
+    }
+    
+    public int getTopDescendantLength() {
+        return topDescendantLength;
+    }
+    
+    // Top descendants are delta encoded, so they must be read sequentially
+    public long nextTopDescendant() {
+        if (topDescendantIndex >= topDescendantLength) {
+            throw new IllegalStateException("No more top descendants");
+        }
+        if (hotNode >= 0) {
+            topDescendantWeight = hotIndex.getTopDescendantWeight(hotNode, topDescendantIndex);
+            return hotIndex.getTopDescendantPointer(hotNode, topDescendantIndex++);
+        }
+        final long ptr = data.setPointer(topDescendantsPointer).readCompressedPointer(prevTopDescendant);
+        if (data.getVersion() >= InternalFormat.V4) {
+            final long delta = data.readCompressedLong();
+            topDescendantWeight = topDescendantIndex == 0 ? delta : topDescendantWeight - delta;
+        } else {
+            topDescendantWeight = -1; // Read from the phrase on demand
+        }
+        topDescendantsPointer = data.getPointer();
+        topDescendantIndex++;
+        prevTopDescendant = ptr;
+        return ptr;
+    }
+    
+    // Weight of the last top descendant returned by nextTopDescendant
+    public long getTopDescendantWeight() {
+        if (topDescendantIndex == 0) {
+            throw new IllegalStateException("No top descendant read");
+        }
+        if (topDescendantWeight < 0) {
+            // Models before V4 do not store the weights in the nodes
+            topDescendantWeight = data.seek(prevTopDescendant).readPhraseWeight();
+        }
+        return topDescendantWeight;
+    }
+    
+    private int childEntrySize() {
+        return legacyChildren ? 8 : childPointerWidth + 1;
+    }
+    
+    private long readChildPointer() {
+        if (relativeChildPointers) {
+            return node + InternalDataWriter.unzigzag(data.readLong(childPointerWidth));
+        }
+        return data.readLong();
+    }
+    
+}
@@ -25,44 +25,40 @@ import java.util.List;
 
 class InternalPhrase {
     
-    // TODO Extract the string from the examples instead of saving it explicitly
+    private static final Charset CHARSET = Charset.forName("utf-8");
+    
     private final long weight;
     private final byte string[];
     private final InternalTranslation translations[];
     
-    private InternalPhrase(InternalDataReader data) {
+    private InternalPhrase(InternalDataReader data, InternalCorpus srcCorpus, InternalCorpus trgCorpus) {
         // Read weight
         weight = data.readCompressedLong();
         
         // Read string
-        final int stringLength = data.readCompressedInt();
-        string = new byte[stringLength];
-        for (int i = 0; i < stringLength; i++) {
-            string[i] = data.readByte();
-        }
+        string = readBytes(data, srcCorpus);
         
         // Read translations
         final int translationsLength = data.readCompressedInt();
         translations = new InternalTranslation[translationsLength];
         for (int i = 0; i < translationsLength; i++) {
-            translations[i] = data.readTranslation();
+            translations[i] = data.readTranslation(string, trgCorpus);
         }
         
     }
     
-    private InternalPhrase(String s) {
-        final String fields[] = s.split("\t");
-        string = fields[0].getBytes(Charset.forName("utf-8")); // TODO Hardcoded charset
-        weight = Long.parseLong(fields[1]);
-        translations = new InternalTranslation[(fields.length-2)/3];
-        for (int i = 0; i < translations.length; i++) {
-            translations[i] = InternalTranslation.parse(
-                    fields[i*3+2] + "\t" + fields[i*3+3] + "\t" + fields[i*3+4]);
-        }
+    public InternalPhrase(byte string[], long weight, InternalTranslation translations[]) {
+        this.string = string;
+        this.weight = weight;
+        this.translations = translations;
     }
     
     public String getString() {
-        return new String(string, Charset.forName("utf-8")); // TODO Hardcoded charset
+        return new String(string, CHARSET);
+    }
+    
+    public byte[] getBytes() {
+        return string;
     }
     
     public long getWeight() {
@@ -78,28 +74,62 @@ class InternalPhrase {
         return getString() + " (" + getWeight() + ")";
     }
     
-    public long write(InternalDataWriter data) throws IOException {        
+    public long write(InternalDataWriter data, InternalStringEncoding.Encoder strings) throws IOException {
         // Write weight
         final long pointer = data.writeCompressedLong(weight);
         
         // Write string
-        data.writeCompressedInt(string.length);
-        for (byte b : string) data.writeByte(b);
+        strings.writePhraseString(data, string, translations);
         
         // Write translations
         data.writeCompressedInt(translations.length);
-        for (final InternalTranslation t : translations) data.writeTranslation(t);
+        for (final InternalTranslation t : translations) data.writeTranslation(t, string, strings);
                 
         // Return the pointer to the first written byte
         return pointer;
     }
     
-    public static InternalPhrase read(InternalDataReader data) {
-        return new InternalPhrase(data);
+    public static InternalPhrase read(InternalDataReader data, InternalCorpus srcCorpus, InternalCorpus trgCorpus) {
+        return new InternalPhrase(data, srcCorpus, trgCorpus);
+    }
+    
+    public static long readWeight(InternalDataReader data) {
+        return data.readCompressedLong();
     }
     
-    public static InternalPhrase parse(String s) {
-        return new InternalPhrase(s);
+    // Reads the pointers to all the translations without decoding them
+    public static long[] readTranslationPointers(InternalDataReader data) {
+        data.readCompressedLong(); // Skip weight
+        InternalStringEncoding.skip(data); // Skip string
+        final long res[] = new long[data.readCompressedInt()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = data.getPointer();
+            InternalTranslation.skip(data);
+        }
+        return res;
+    }
+    
+    // Reads the string alone without decoding the translations
+    public static String readString(InternalDataReader data, InternalCorpus srcCorpus) {
+        data.readCompressedLong(); // Skip weight
+        return new String(readBytes(data, srcCorpus), CHARSET);
+    }
+    
+    // Reads the string that starts at the current position, which might be
+    // taken from an example of the first translation
+    private static byte[] readBytes(InternalDataReader data, InternalCorpus srcCorpus) {
+        final int header = InternalStringEncoding.readHeader(data);
+        if (InternalStringEncoding.getTag(header) != InternalStringEncoding.EXAMPLE) {
+            return InternalStringEncoding.readInline(data, header, null);
+        }
+        final InternalDataReader translation = data.seek(data.getPointer());
+        if (translation.readCompressedInt() == 0) {
+            throw new IllegalStateException("Invalid example reference");
+        }
+        translation.readCompressedLong(); // Skip occurrences
+        InternalStringEncoding.skip(translation); // Skip translation string
+        return InternalStringEncoding.readExample(translation, InternalStringEncoding.getValue(header))
+                .getSrc().getPhraseBytes(srcCorpus);
     }
     
 }
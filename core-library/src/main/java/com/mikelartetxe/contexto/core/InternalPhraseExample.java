@@ -17,6 +17,8 @@
 
 package com.mikelartetxe.contexto.core;
 
+import java.util.Arrays;
+
 
 class InternalPhraseExample {
     
@@ -29,6 +31,14 @@ class InternalPhraseExample {
         this.phraseEndOffset = phraseEndOffset;
     }
     
+    public int getPhraseStartOffset() {
+        return phraseStartOffset;
+    }
+    
+    public int getPhraseEndOffset() {
+        return phraseEndOffset;
+    }
+    
     public String getLeftContext(InternalCorpus corpus) {
         return corpus.getLeftContext(sentenceId, phraseStartOffset);
     }
@@ -41,8 +51,27 @@ class InternalPhraseExample {
         return corpus.getPhrase(sentenceId, phraseStartOffset, phraseEndOffset);
     }
     
+    public byte[] getPhraseBytes(InternalCorpus corpus) {
+        return corpus.getPhraseBytes(sentenceId, phraseStartOffset, phraseEndOffset);
+    }
+    
+    // Whether the phrase is the given string, which is never the case if the
+    // example does not fit in the corpus
+    public boolean matches(InternalCorpus corpus, byte string[]) {
+        if (sentenceId < 0 || sentenceId >= corpus.size() ||
+                phraseStartOffset < 0 || phraseEndOffset - phraseStartOffset != string.length ||
+                phraseEndOffset > corpus.getSentenceLength(sentenceId)) {
+            return false;
+        }
+        return Arrays.equals(getPhraseBytes(corpus), string);
+    }
+    
     public String getFullText(InternalCorpus corpus) {
         return corpus.getSentence(sentenceId);
     }
     
+    public byte[] getFullTextBytes(InternalCorpus corpus) {
+        return corpus.getSentenceBytes(sentenceId);
+    }
+    
 }
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+// Extracts phrase pairs from a word aligned parallel corpus, as done by
+// training/extract_phrases.py, giving the same records in the same order:
+//   src \t trg \t sentenceId:srcStart:srcEnd:trgStart:trgEnd
+// Lines are processed as raw UTF-8 bytes, where invalid bytes stand for
+// themselves as with the surrogateescape error handler of Python. Sentences
+// are read in batches that are processed by a fork-join pool, while records
+// are returned in the order of the input.
+class InternalPhraseExtractor implements Closeable {
+    
+    private static final Charset CHARSET = Charset.forName("utf-8");
+    
+    public static final int MAX_PHRASE_LEN = 5;
+    private static final int UNALIGNED_MAX = -1;
+    private static final int UNALIGNED_MIN = 1000000000;
+    
+    private static final int BATCH_SIZE = 1024; // Sentences per task
+    private static final int BATCHES_PER_THREAD = 2; // Batches being processed or waiting to be read
+    
+    private final InternalLineReader src, trg, srcTok, trgTok, alignment;
+    private final boolean reverse;
+    private final PrintStream warnings;
+    private final ForkJoinPool pool;
+    private final int maxPending;
+    private final Deque<Future<Batch>> pending = new ArrayDeque<>();
+    private int sentences = 0;
+    private boolean eof = false;
+    private Batch batch = null;
+    private int batchPosition = 0;
+    
+    // Reversed alignments are given as trg-src instead of src-trg. Warnings
+    // about mismatching tokenizations are printed to the given stream if any.
+    public InternalPhraseExtractor(InputStream src, InputStream trg, InputStream srcTok, InputStream trgTok,
+            InputStream alignment, boolean reverse, int threads, PrintStream warnings) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.src = new InternalLineReader(src);
+        this.trg = new InternalLineReader(trg);
+        this.srcTok = new InternalLineReader(srcTok);
+        this.trgTok = new InternalLineReader(trgTok);
+        this.alignment = new InternalLineReader(alignment);
+        this.reverse = reverse;
+        this.warnings = warnings;
+        this.maxPending = BATCHES_PER_THREAD * threads;
+        this.pool = new ForkJoinPool(threads);
+    }
+    
+    // Returns the next phrase pair or null once the corpus has been processed
+    public byte[] next() throws IOException {
+        while (batch == null || batchPosition == batch.records.size()) {
+            batch = nextBatch();
+            batchPosition = 0;
+            if (batch == null) {
+                return null;
+            }
+            if (warnings != null) {
+                for (String warning : batch.warnings) warnings.println(warning);
+            }
+        }
+        return batch.records.get(batchPosition++);
+    }
+    
+    private Batch nextBatch() throws IOException {
+        while (pending.size() < maxPending && !eof) {
+            final List<byte[][]> lines = readBatch();
+            if (!lines.isEmpty()) {
+                final int firstSentence = sentences;
+                sentences += lines.size();
+                pending.add(pool.submit(new Callable<Batch>() {
+                    @Override
+                    public Batch call() {
+                        return new Batch(lines, firstSentence, reverse);
+                    }
+                }));
+            }
+        }
+        if (pending.isEmpty()) {
+            return null;
+        }
+        try {
+            return pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+    
+    // Reads the lines of the next sentences, stopping at the end of the
+    // shortest file as zip does in Python
+    private List<byte[][]> readBatch() throws IOException {
+        final List<byte[][]> res = new ArrayList<>(BATCH_SIZE);
+        while (res.size() < BATCH_SIZE) {
+            final byte lines[][] = new byte[][]{src.readLine(), trg.readLine(),
+                    srcTok.readLine(), trgTok.readLine(), alignment.readLine()};
+            for (byte line[] : lines) {
+                if (line == null) {
+                    eof = true;
+                    return res;
+                }
+            }
+            res.add(lines);
+        }
+        return res;
+    }
+    
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+    
+    
+    // Phrase pairs extracted from consecutive sentences
+    private static class Batch {
+        
+        public final List<byte[]> records = new ArrayList<>();
+        public final List<String> warnings = new ArrayList<>();
+        
+        public Batch(List<byte[][]> lines, int firstSentence, boolean reverse) {
+            final ByteArrayOutputStream record = new ByteArrayOutputStream();
+            for (int n = 0; n < lines.size(); n++) {
+                extract(firstSentence + n, lines.get(n), reverse, record);
+            }
+        }
+        
+        private void extract(int sentence, byte lines[][], boolean reverse, ByteArrayOutputStream record) {
+            final byte srcLine[] = lines[0], trgLine[] = lines[1], srcTokLine[] = lines[2], trgTokLine[] = lines[3];
+            final Tokens src = new Tokens(srcTokLine), trg = new Tokens(trgTokLine);
+            final int links[] = parseAlignment(lines[4], sentence, reverse);
+            
+            // Find token boundaries
+            final int srcBoundaries[] = src.boundaries(srcLine);
+            final int trgBoundaries[] = trg.boundaries(trgLine);
+            if (srcBoundaries == null) {
+                warn("source", sentence, srcLine, srcTokLine);
+                return;
+            }
+            if (trgBoundaries == null) {
+                warn("target", sentence, trgLine, trgTokLine);
+                return;
+            }
+            
+            // Get maximum/minimum alignments in both directions. As in the
+            // Python script, trg2srcmin is never updated and trg2srcmax ends up
+            // holding the last source word aligned with each target word, so
+            // the same phrase pairs are extracted (see the tests).
+            final int src2trgmax[] = filled(src.length(), UNALIGNED_MAX);
+            final int src2trgmin[] = filled(src.length(), UNALIGNED_MIN);
+            final int trg2srcmax[] = filled(trg.length(), UNALIGNED_MAX);
+            for (int l = 0; l < links.length; l += 2) {
+                final int s = links[l], t = links[l+1];
+                if (s >= src.length() || t >= trg.length()) {
+                    throw new IllegalArgumentException("Alignment out of range in line " + (sentence + 1));
+                }
+                src2trgmax[s] = Math.max(src2trgmax[s], t);
+                src2trgmin[s] = Math.min(src2trgmin[s], t);
+                trg2srcmax[t] = s;
+            }
+            
+            // Check punctuation tokens
+            final boolean srcPunct[] = src.punctuation(), trgPunct[] = trg.punctuation();
+            
+            // Source phrase goes from i to j (both inclusive)
+            for (int i = 0; i < src.length(); i++) {
+                if (src2trgmin[i] == UNALIGNED_MIN) continue;
+                int mintrg = UNALIGNED_MIN, maxtrg = UNALIGNED_MAX;
+                for (int j = i; j < Math.min(i + MAX_PHRASE_LEN, src.length()); j++) {
+                    // Skip if the source phrase contains punctuation tokens,
+                    // which also holds for any longer phrase
+                    if (srcPunct[j]) break;
+                    
+                    // Find aligned phrase
+                    mintrg = Math.min(mintrg, src2trgmin[j]);
+                    maxtrg = Math.max(maxtrg, src2trgmax[j]);
+                    
+                    // Skip if the last entry is unaligned or the aligned
+                    // phrase is bigger than the limit
+                    if (src2trgmin[j] == UNALIGNED_MIN || maxtrg - mintrg + 1 > MAX_PHRASE_LEN) continue;
+                    
+                    // Skip if the aligned phrase contains punctuation tokens or
+                    // there are backward alignments outside the source phrase
+                    boolean skip = false;
+                    for (int k = mintrg; k <= maxtrg && !skip; k++) {
+                        skip = trgPunct[k] || trg2srcmax[k] > j;
+                    }
+                    if (skip) continue;
+                    
+                    record.reset();
+                    src.write(i, j, record);
+                    record.write('\t');
+                    trg.write(mintrg, maxtrg, record);
+                    record.write('\t');
+                    writeAscii(sentence + ":" + srcBoundaries[2*i] + ":" + srcBoundaries[2*j+1] + ":" +
+                            trgBoundaries[2*mintrg] + ":" + trgBoundaries[2*maxtrg+1], record);
+                    records.add(record.toByteArray());
+                }
+            }
+        }
+        
+        private void warn(String language, int sentence, byte line[], byte tokLine[]) {
+            warnings.add("WARNING: Tokenization mismatch in " + language + " language (line " + (sentence + 1) + ")\n" +
+                    "\t" + strip(new String(line, CHARSET)) + "\n" +
+                    "\t" + strip(new String(tokLine, CHARSET)) + "\n");
+        }
+        
+        private static String strip(String s) {
+            int from = 0, to = s.length();
+            while (from < to && isSpace(s.codePointAt(from))) from = s.offsetByCodePoints(from, 1);
+            while (to > from && isSpace(s.codePointBefore(to))) to = s.offsetByCodePoints(to, -1);
+            return s.substring(from, to);
+        }
+        
+    }
+    
+    // Returns the alignment links as a flat array of src, trg pairs
+    private static int[] parseAlignment(byte line[], int sentence, boolean reverse) {
+        final Tokens tokens = new Tokens(line);
+        final int res[] = new int[2 * tokens.length()];
+        for (int l = 0; l < tokens.length(); l++) {
+            final int start = tokens.boundaries[2*l], end = tokens.boundaries[2*l+1];
+            int dash = start;
+            while (dash < end && line[dash] != '-') dash++;
+            final int s = parseIndex(line, start, dash, sentence);
+            final int t = parseIndex(line, dash + 1, end, sentence);
+            res[2*l] = reverse ? t : s;
+            res[2*l+1] = reverse ? s : t;
+        }
+        return res;
+    }
+    
+    private static int parseIndex(byte line[], int from, int to, int sentence) {
+        if (from >= to || to - from > 9) {
+            throw new IllegalArgumentException("Malformed alignment in line " + (sentence + 1));
+        }
+        int res = 0;
+        for (int i = from; i < to; i++) {
+            final int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Malformed alignment in line " + (sentence + 1));
+            }
+            res = 10*res + digit;
+        }
+        return res;
+    }
+    
+    private static int[] filled(int length, int value) {
+        final int res[] = new int[length];
+        Arrays.fill(res, value);
+        return res;
+    }
+    
+    private static void writeAscii(String s, ByteArrayOutputStream os) {
+        for (int i = 0; i < s.length(); i++) {
+            os.write(s.charAt(i));
+        }
+    }
+    
+    
+    // Whitespace separated tokens of a line, as given by str.split in Python
+    private static class Tokens {
+        
+        private final byte line[];
+        private final int boundaries[]; // start and end byte of each token
+        private final int length;
+        
+        public Tokens(byte line[]) {
+            this.line = line;
+            int aux[] = new int[32];
+            int n = 0;
+            int pos = 0;
+            while (pos < line.length) {
+                while (pos < line.length && isSpace(codePoint(line, pos))) pos += codePointLength(line, pos);
+                if (pos == line.length) break;
+                final int start = pos;
+                while (pos < line.length && !isSpace(codePoint(line, pos))) pos += codePointLength(line, pos);
+                if (2*n + 2 > aux.length) aux = Arrays.copyOf(aux, 2 * aux.length);
+                aux[2*n] = start;
+                aux[2*n+1] = pos;
+                n++;
+            }
+            this.boundaries = aux;
+            this.length = n;
+        }
+        
+        public int length() {
+            return length;
+        }
+        
+        // Writes the tokens from i to j (both inclusive) separated by spaces
+        public void write(int i, int j, ByteArrayOutputStream os) {
+            for (int k = i; k <= j; k++) {
+                if (k > i) os.write(' ');
+                os.write(line, boundaries[2*k], boundaries[2*k+1] - boundaries[2*k]);
+            }
+        }
+        
+        // Tokens without any alphanumeric character
+        public boolean[] punctuation() {
+            final boolean res[] = new boolean[length];
+            for (int k = 0; k < length; k++) {
+                res[k] = true;
+                for (int pos = boundaries[2*k]; pos < boundaries[2*k+1] && res[k]; pos += codePointLength(line, pos)) {
+                    res[k] = !isAlnum(codePoint(line, pos));
+                }
+            }
+            return res;
+        }
+        
+        // Returns the start and end byte of each token in the given
+        // untokenized line, which should only differ in case and whitespace,
+        // or null if they do not match
+        public int[] boundaries(byte s[]) {
+            final int res[] = new int[2 * length];
+            int pos = 0;
+            for (int k = 0; k < length; k++) {
+                // Skip whitespaces
+                while (pos < s.length && isSpace(codePoint(s, pos))) pos += codePointLength(s, pos);
+                
+                // Check that the token is matched
+                res[2*k] = pos;
+                for (int t = boundaries[2*k]; t < boundaries[2*k+1]; t += codePointLength(line, t)) {
+                    if (pos >= s.length || !equalsIgnoreCase(codePoint(line, t), codePoint(s, pos))) {
+                        return null;
+                    }
+                    pos += codePointLength(s, pos);
+                }
+                res[2*k+1] = pos;
+            }
+            return res;
+        }
+        
+    }
+    
+    // Decodes the UTF-8 code point starting at the given position. Bytes that
+    // are not part of a valid sequence are mapped to U+DC80..U+DCFF, as done
+    // by the surrogateescape error handler of Python.
+    private static int codePoint(byte b[], int pos) {
+        final int b0 = b[pos] & 0xFF;
+        final int n = codePointLength(b, pos);
+        if (n == 1) {
+            return b0 < 0x80 ? b0 : 0xDC00 | b0;
+        }
+        int res = b0 & (0xFF >> (n + 1));
+        for (int i = 1; i < n; i++) {
+            res = (res << 6) | (b[pos+i] & 0x3F);
+        }
+        return res;
+    }
+    
+    // Length of the code point starting at the given position, which is 1 for
+    // invalid bytes
+    private static int codePointLength(byte b[], int pos) {
+        final int b0 = b[pos] & 0xFF;
+        final int n;
+        final int min, max; // Allowed range for the second byte
+        if (b0 < 0xC2) {
+            return 1;
+        } else if (b0 < 0xE0) {
+            n = 2; min = 0x80; max = 0xBF;
+        } else if (b0 < 0xF0) {
+            n = 3;
+            min = b0 == 0xE0 ? 0xA0 : 0x80; // No overlong encodings
+            max = b0 == 0xED ? 0x9F : 0xBF; // No surrogates
+        } else if (b0 < 0xF5) {
+            n = 4;
+            min = b0 == 0xF0 ? 0x90 : 0x80; // No overlong encodings
+            max = b0 == 0xF4 ? 0x8F : 0xBF; // Up to U+10FFFF
+        } else {
+            return 1;
+        }
+        if (pos + n > b.length) {
+            return 1;
+        }
+        final int b1 = b[pos+1] & 0xFF;
+        if (b1 < min || b1 > max) {
+            return 1;
+        }
+        for (int i = 2; i < n; i++) {
+            if ((b[pos+i] & 0xC0) != 0x80) return 1;
+        }
+        return n;
+    }
+    
+    // Same as str.isspace in Python
+    private static boolean isSpace(int c) {
+        return Character.isWhitespace(c) || Character.isSpaceChar(c) || c == 0x85;
+    }
+    
+    // Same as str.isalnum in Python
+    private static boolean isAlnum(int c) {
+        if (Character.isLetterOrDigit(c)) {
+            return true;
+        }
+        final int type = Character.getType(c);
+        return type == Character.LETTER_NUMBER || type == Character.OTHER_NUMBER;
+    }
+    
+    // Same as a.lower() == b.lower() in Python
+    private static boolean equalsIgnoreCase(int a, int b) {
+        if (a == b) {
+            return true;
+        } else if (a < 0x80 && b < 0x80) {
+            return Character.toLowerCase(a) == Character.toLowerCase(b);
+        }
+        final String la = new String(Character.toChars(a)).toLowerCase(Locale.ROOT);
+        final String lb = new String(Character.toChars(b)).toLowerCase(Locale.ROOT);
+        return la.equals(lb);
+    }
+    
+}
@@ -26,26 +26,28 @@ class InternalPhrasePairExample {
     private final int srcPhraseStartOffset, srcPhraseEndOffset;
     private final int trgPhraseStartOffset, trgPhraseEndOffset;
     
-    private InternalPhrasePairExample(String s) {
-        final String fields[] = s.split(":");
-        sentenceId = Integer.parseInt(fields[0]);
-        srcPhraseStartOffset = Integer.parseInt(fields[1]);
-        srcPhraseEndOffset = Integer.parseInt(fields[2]);
-        trgPhraseStartOffset = Integer.parseInt(fields[3]);
-        trgPhraseEndOffset = Integer.parseInt(fields[4]);
+    public InternalPhrasePairExample(int sentenceId,
+            int srcPhraseStartOffset, int srcPhraseEndOffset,
+            int trgPhraseStartOffset, int trgPhraseEndOffset) {
+        this.sentenceId = sentenceId;
+        this.srcPhraseStartOffset = srcPhraseStartOffset;
+        this.srcPhraseEndOffset = srcPhraseEndOffset;
+        this.trgPhraseStartOffset = trgPhraseStartOffset;
+        this.trgPhraseEndOffset = trgPhraseEndOffset;
     }
     
     private InternalPhrasePairExample(InternalDataReader data) {
         // Read sentence id
         sentenceId = data.readCompressedInt();
         
-        // Read src offsets
+        // Read src offsets (the end offset is stored as a length since V3)
+        final boolean lengths = data.getVersion() >= InternalFormat.V3;
         srcPhraseStartOffset = data.readCompressedInt();
-        srcPhraseEndOffset = data.readCompressedInt();
+        srcPhraseEndOffset = data.readCompressedInt() + (lengths ? srcPhraseStartOffset : 0);
         
         // Read trg offsets
         trgPhraseStartOffset = data.readCompressedInt();
-        trgPhraseEndOffset = data.readCompressedInt();
+        trgPhraseEndOffset = data.readCompressedInt() + (lengths ? trgPhraseStartOffset : 0);
     }
     
     public InternalPhraseExample getSrc() {
@@ -56,17 +58,23 @@ class InternalPhrasePairExample {
         return new InternalPhraseExample(sentenceId, trgPhraseStartOffset, trgPhraseEndOffset);
     }
     
+    // Same example in a corpus where the sentences start at the given id
+    public InternalPhrasePairExample shift(int firstSentenceId) {
+        return new InternalPhrasePairExample(sentenceId + firstSentenceId,
+                srcPhraseStartOffset, srcPhraseEndOffset, trgPhraseStartOffset, trgPhraseEndOffset);
+    }
+    
     public long write(InternalDataWriter data) throws IOException {
         // Write sentence id
         final long pointer = data.writeCompressedInt(sentenceId);
         
         // Write src offsets
         data.writeCompressedInt(srcPhraseStartOffset);
-        data.writeCompressedInt(srcPhraseEndOffset);
+        data.writeCompressedInt(srcPhraseEndOffset - srcPhraseStartOffset);
         
         // Write trg offsets
         data.writeCompressedInt(trgPhraseStartOffset);
-        data.writeCompressedInt(trgPhraseEndOffset);
+        data.writeCompressedInt(trgPhraseEndOffset - trgPhraseStartOffset);
         
         // Return the pointer to the first written byte
         return pointer;
@@ -76,8 +84,16 @@ class InternalPhrasePairExample {
         return new InternalPhrasePairExample(data);
     }
     
-    public static InternalPhrasePairExample parse(String s) {
-        return new InternalPhrasePairExample(s);
+    // Parses an example given as sentenceId:srcStart:srcEnd:trgStart:trgEnd
+    public static InternalPhrasePairExample parse(InternalFields fields) {
+        final InternalPhrasePairExample res = new InternalPhrasePairExample(fields.nextInt(),
+                fields.nextInt(), fields.nextInt(), fields.nextInt(), fields.nextInt());
+        fields.checkEnd();
+        return res;
+    }
+    
+    public static void skip(InternalDataReader data) {
+        for (int i = 0; i < 5; i++) data.readCompressedInt();
     }
     
 }
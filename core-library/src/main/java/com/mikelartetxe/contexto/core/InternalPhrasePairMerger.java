@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+
+// Groups sorted phrase pairs into the phrases of the model, as done by
+// training/merge_sorted.py. Each record is given as src \t trg \t example,
+// where the example is sentenceId:srcStart:srcEnd:trgStart:trgEnd, and
+// records with the same source and target phrase must be consecutive.
+// Examples are sampled at random as they are read, so only a few of them
+// are kept in memory for each translation. The seed is fixed, so building
+// the same model twice gives the same result.
+class InternalPhrasePairMerger {
+    
+    private static final Charset CHARSET = Charset.forName("utf-8");
+    
+    // The maximum number of examples to keep per translation
+    public static final int MAX_EXAMPLES_PER_TRANSLATION = 10;
+    
+    // Translations with less examples than this are grouped in $OTHERS$
+    public static final int MIN_EXAMPLES_PER_TRANSLATION = 3;
+    
+    // The less frequent translations beyond this number are grouped in $OTHERS$
+    public static final int MAX_TRANSLATIONS_PER_PHRASE = 10;
+    
+    static final byte OTHERS[] = "$OTHERS$".getBytes(CHARSET);
+    private static final long SEED = 0;
+    
+    private final InternalExternalSorter records;
+    private final boolean keepAll;
+    private final Random random = new Random(SEED);
+    private InternalFields next; // Remaining fields of the first record not merged yet
+    private byte nextSrc[];
+    
+    // If keepAll is set, all the translations are kept and none of them are
+    // grouped in $OTHERS$, as needed for shards (see BuildOptions.setShard)
+    public InternalPhrasePairMerger(InternalExternalSorter records, boolean keepAll) {
+        this.records = records;
+        this.keepAll = keepAll;
+    }
+    
+    // Returns the next phrase or null once all the records have been merged.
+    // Phrases where all the translations go to $OTHERS$ are skipped.
+    public InternalPhrase next() throws IOException {
+        while (true) {
+            if (next == null && !advance()) {
+                return null;
+            }
+            final byte src[] = nextSrc;
+            final List<Translation> translations = new ArrayList<>();
+            Translation translation = null;
+            do {
+                final byte trg[] = next.nextBytes();
+                final InternalPhrasePairExample example = InternalPhrasePairExample.parse(next.nextFields((byte)':'));
+                next.checkEnd();
+                if (translation == null || !Arrays.equals(translation.string, trg)) {
+                    translation = new Translation(trg);
+                    translations.add(translation);
+                }
+                translation.add(example, random);
+            } while (advance() && Arrays.equals(src, nextSrc));
+            final InternalPhrase phrase = merge(src, translations);
+            if (phrase != null) {
+                return phrase;
+            }
+        }
+    }
+    
+    private boolean advance() throws IOException {
+        final byte record[] = records.next();
+        if (record == null) {
+            next = null;
+            return false;
+        }
+        next = new InternalFields(record, 0, record.length, (byte)'\t');
+        nextSrc = next.nextBytes();
+        return true;
+    }
+    
+    private InternalPhrase merge(byte src[], List<Translation> translations) {
+        Collections.sort(translations);
+        long total = 0;
+        for (Translation translation : translations) {
+            total += translation.count;
+        }
+        
+        final List<InternalTranslation> kept = new ArrayList<>();
+        final List<Translation> others = new ArrayList<>();
+        long othersCount = 0;
+        for (Translation translation : translations) {
+            if (keepAll || (translation.count >= MIN_EXAMPLES_PER_TRANSLATION && kept.size() < MAX_TRANSLATIONS_PER_PHRASE)) {
+                kept.add(new InternalTranslation(translation.string, translation.count, translation.sample(random)));
+            } else {
+                others.add(translation);
+                othersCount += translation.count;
+            }
+        }
+        if (kept.isEmpty()) {
+            return null;
+        }
+        
+        // Sample the examples of $OTHERS$ from all the translations in it
+        if (othersCount > 0) {
+            final InternalPhrasePairExample samples[][] = new InternalPhrasePairExample[others.size()][];
+            final long counts[] = new long[others.size()];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = others.get(i).sample(random);
+                counts[i] = others.get(i).count;
+            }
+            kept.add(new InternalTranslation(OTHERS, othersCount, sample(samples, counts, random)));
+        }
+        return new InternalPhrase(src, total, kept.toArray(new InternalTranslation[kept.size()]));
+    }
+    
+    // Draws up to MAX_EXAMPLES_PER_TRANSLATION examples from several samples
+    // without replacement, each of them from a sample with probability
+    // proportional to the examples it has left. Samples are given in random
+    // order and counts[i] is the number of examples samples[i] was taken from.
+    static InternalPhrasePairExample[] sample(InternalPhrasePairExample samples[][], long counts[], Random random) {
+        final long left[] = counts.clone();
+        final int taken[] = new int[samples.length];
+        long leftTotal = 0;
+        for (long count : counts) {
+            leftTotal += count;
+        }
+        final InternalPhrasePairExample examples[] =
+                new InternalPhrasePairExample[(int)Math.min(leftTotal, MAX_EXAMPLES_PER_TRANSLATION)];
+        int n = 0;
+        while (n < examples.length && leftTotal > 0) {
+            long r = (long)(random.nextDouble() * leftTotal);
+            int i = 0;
+            while (r >= left[i]) r -= left[i++];
+            examples[n++] = samples[i][taken[i]++];
+            left[i]--;
+            leftTotal--;
+            if (taken[i] == samples[i].length) {
+                // Only for samples taken from models that kept fewer examples
+                leftTotal -= left[i];
+                left[i] = 0;
+            }
+        }
+        return n < examples.length ? Arrays.copyOf(examples, n) : examples;
+    }
+    
+    
+    // Translation being merged, with a uniform sample of its examples
+    private static class Translation implements Comparable<Translation> {
+        
+        public final byte string[];
+        public int count = 0;
+        private final InternalPhrasePairExample reservoir[] = new InternalPhrasePairExample[MAX_EXAMPLES_PER_TRANSLATION];
+        
+        public Translation(byte string[]) {
+            this.string = string;
+        }
+        
+        public void add(InternalPhrasePairExample example, Random random) {
+            if (count < reservoir.length) {
+                reservoir[count] = example;
+            } else {
+                final int i = random.nextInt(count + 1);
+                if (i < reservoir.length) reservoir[i] = example;
+            }
+            count++;
+        }
+        
+        // Returns the sampled examples in random order
+        public InternalPhrasePairExample[] sample(Random random) {
+            final InternalPhrasePairExample res[] = Arrays.copyOf(reservoir, Math.min(count, reservoir.length));
+            for (int i = res.length - 1; i > 0; i--) {
+                final int j = random.nextInt(i + 1);
+                final InternalPhrasePairExample aux = res[i];
+                res[i] = res[j];
+                res[j] = aux;
+            }
+            return res;
+        }
+        
+        @Override
+        public int compareTo(Translation other) {
+            // More examples first, and higher string first in case of tie
+            if (count != other.count) return other.count - count;
+            return UNSIGNED_BYTES.compare(other.string, string);
+        }
+        
+    }
+    
+    static final Comparator<byte[]> UNSIGNED_BYTES = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte a[], byte b[]) {
+            final int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                final int diff = (a[i] & 0xFF) - (b[i] & 0xFF); // as unsigned ints
+                if (diff != 0) return diff;
+            }
+            return a.length - b.length;
+        }
+    };
+    
+}
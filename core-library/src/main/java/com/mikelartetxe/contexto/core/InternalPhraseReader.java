@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+// Reads the phrase table used to build a model, with one phrase per line:
+//   src \t weight (\t trg \t occurrences \t examples)*
+// where examples are separated by spaces and each of them is given as
+// sentenceId:srcStart:srcEnd:trgStart:trgEnd. The input is split into chunks
+// of whole lines that are parsed from their UTF-8 bytes and encoded into
+// phrase records by a pool of worker threads, while blocks are returned in
+// the order of the input.
+class InternalPhraseReader implements Closeable {
+    
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 2; // Chunks being parsed or waiting to be written
+    
+    private final InputStream in;
+    private final InternalStringEncoding.Encoder encoder;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<Block>> pending = new ArrayDeque<>();
+    private byte remainder[] = new byte[0]; // Beginning of a line not fully read yet
+    private boolean eof = false;
+    
+    public InternalPhraseReader(InputStream in, int threads) {
+        this(in, threads, InternalStringEncoding.LITERALS);
+    }
+    
+    // Phrase and translation strings are encoded by the given encoder, which
+    // is used from all the worker threads
+    public InternalPhraseReader(InputStream in, int threads, InternalStringEncoding.Encoder encoder) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.in = in;
+        this.encoder = encoder;
+        this.maxPending = CHUNKS_PER_THREAD * threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int n = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "phrase-parser-" + n++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    // Returns null once all the phrases have been read
+    public Block next() throws IOException {
+        while (pending.size() < maxPending && !eof) {
+            final byte chunk[] = readChunk();
+            if (chunk.length > 0) {
+                pending.add(executor.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() throws IOException {
+                        return new Block(chunk, encoder);
+                    }
+                }));
+            }
+        }
+        if (pending.isEmpty()) {
+            return null;
+        }
+        try {
+            return pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+    
+    // Reads the next chunk of whole lines
+    private byte[] readChunk() throws IOException {
+        byte buffer[] = Arrays.copyOf(remainder, Math.max(CHUNK_SIZE, 2 * remainder.length));
+        int length = remainder.length;
+        while (true) {
+            while (length < buffer.length) {
+                final int n = in.read(buffer, length, buffer.length - length);
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                length += n;
+            }
+            if (eof) {
+                remainder = new byte[0];
+                return Arrays.copyOf(buffer, length);
+            }
+            int end = length;
+            while (end > 0 && buffer[end - 1] != '\n') end--;
+            if (end > 0) {
+                remainder = Arrays.copyOfRange(buffer, end, length);
+                return Arrays.copyOf(buffer, end);
+            }
+            buffer = Arrays.copyOf(buffer, 2 * buffer.length); // Line longer than the buffer
+        }
+    }
+    
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+    
+    
+    // Phrases in a chunk of the input, encoded in the format written by
+    // InternalPhrase.write. Records do not contain pointers, so they can be
+    // copied to any position of the model.
+    public static class Block {
+        
+        private final List<byte[]> strings = new ArrayList<>();
+        private long weights[] = new long[256];
+        private int recordStarts[] = new int[257];
+        private final byte records[];
+        
+        private Block(byte chunk[], InternalStringEncoding.Encoder encoder) throws IOException {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream(chunk.length);
+            final InternalDataWriter writer = new InternalDataWriter(os);
+            int start = 0;
+            while (start < chunk.length) {
+                int end = start;
+                while (end < chunk.length && chunk[end] != '\n') end++;
+                final int next = end + 1;
+                if (end > start && chunk[end - 1] == '\r') end--;
+                final InternalPhrase phrase = parse(chunk, start, end);
+                final int n = strings.size();
+                if (n == weights.length) {
+                    weights = Arrays.copyOf(weights, 2 * n);
+                    recordStarts = Arrays.copyOf(recordStarts, 2 * n + 1);
+                }
+                strings.add(phrase.getBytes());
+                weights[n] = phrase.getWeight();
+                recordStarts[n] = (int)writer.writePhrase(phrase, encoder);
+                start = next;
+            }
+            recordStarts[strings.size()] = os.size();
+            records = os.toByteArray();
+        }
+        
+        public int size() {
+            return strings.size();
+        }
+        
+        public byte[] getString(int i) {
+            return strings.get(i);
+        }
+        
+        public long getWeight(int i) {
+            return weights[i];
+        }
+        
+        // Copies the record of the i-th phrase and returns the pointer to it
+        public long write(int i, InternalDataWriter writer) throws IOException {
+            return writer.writeBytes(records, recordStarts[i], recordStarts[i + 1] - recordStarts[i]);
+        }
+        
+    }
+    
+    private static InternalPhrase parse(byte line[], int from, int to) {
+        final InternalFields fields = new InternalFields(line, from, to, (byte)'\t');
+        final byte string[] = fields.nextBytes();
+        final long weight = fields.nextLong();
+        final List<InternalTranslation> translations = new ArrayList<>();
+        while (fields.hasNext()) {
+            final byte translation[] = fields.nextBytes();
+            final long occurrences = fields.nextLong();
+            final InternalFields exampleCodes = fields.nextFields((byte)' ');
+            final List<InternalPhrasePairExample> examples = new ArrayList<>();
+            while (exampleCodes.hasNext()) {
+                examples.add(InternalPhrasePairExample.parse(exampleCodes.nextFields((byte)':')));
+            }
+            translations.add(new InternalTranslation(translation, occurrences,
+                    examples.toArray(new InternalPhrasePairExample[examples.size()])));
+        }
+        return new InternalPhrase(string, weight, translations.toArray(new InternalTranslation[translations.size()]));
+    }
+    
+}
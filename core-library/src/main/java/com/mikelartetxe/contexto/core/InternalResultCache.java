@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Size-bounded cache of query results shared by all threads. Entries are
+// split into independently locked LRU segments, each of which evicts its
+// least recently used entries once their total weight exceeds its share of
+// the maximum weight.
+class InternalResultCache {
+    
+    private static final int SEGMENTS = 16;
+    
+    public static final byte SEARCH = 0;
+    public static final byte AUTOCOMPLETE = 1;
+    
+    private final Segment segments[];
+    private final long maxWeight;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    public InternalResultCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxWeight / SEGMENTS);
+        }
+    }
+    
+    private Segment segmentFor(Key key) {
+        final int h = key.hash ^ (key.hash >>> 16);
+        return segments[(h & 0x7FFFFFFF) % SEGMENTS];
+    }
+    
+    // Returns null if the key is not cached
+    public Object get(Key key) {
+        final Object value = segmentFor(key).get(key);
+        (value == null ? misses : hits).incrementAndGet();
+        return value;
+    }
+    
+    // Values must not be modified once they are cached
+    public void put(Key key, Object value, long weight) {
+        segmentFor(key).put(key, value, weight);
+    }
+    
+    public ResultCacheStats getStats() {
+        long size = 0, weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+                weight += segment.weight;
+            }
+        }
+        return new ResultCacheStats(hits.get(), misses.get(), evictions.get(), size, weight, maxWeight);
+    }
+    
+    public static Key key(byte type, byte query[], int param1, int param2) {
+        return new Key(type, query, param1, param2);
+    }
+    
+    
+    private class Segment {
+        
+        private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxWeight;
+        private long weight;
+        
+        public Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+        
+        public synchronized Object get(Key key) {
+            final Entry entry = map.get(key);
+            return entry == null ? null : entry.value;
+        }
+        
+        public synchronized void put(Key key, Object value, long weight) {
+            if (weight > maxWeight) {
+                return; // Would evict everything else and not fit anyway
+            }
+            final Entry prev = map.put(key, new Entry(value, weight));
+            this.weight += weight - (prev == null ? 0 : prev.weight);
+            final Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+            while (this.weight > maxWeight && it.hasNext()) {
+                final Entry eldest = it.next().getValue();
+                it.remove();
+                this.weight -= eldest.weight;
+                evictions.incrementAndGet();
+            }
+        }
+        
+    }
+    
+    
+    private static class Entry {
+        
+        public final Object value;
+        public final long weight;
+        
+        public Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+        
+    }
+    
+    
+    public static class Key {
+        
+        private final byte type;
+        private final byte query[];
+        private final int param1, param2;
+        private final int hash;
+        
+        private Key(byte type, byte query[], int param1, int param2) {
+            this.type = type;
+            this.query = query;
+            this.param1 = param1;
+            this.param2 = param2;
+            this.hash = 31 * (31 * (31 * type + Arrays.hashCode(query)) + param1) + param2;
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key)o;
+            return hash == other.hash && type == other.type && param1 == other.param1 &&
+                    param2 == other.param2 && Arrays.equals(query, other.query);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+// Since V7, the header of the model is followed by sections that start at a
+// page boundary, so that each of them can be memory mapped, read into the
+// heap or not loaded at all on its own. Pointers are still relative to the
+// beginning of the file. As models are written as a stream and the size of
+// the sections is not known in advance, they are listed in a table at the
+// end of the model:
+//   int flags
+//   int number of sections
+//   for each section: int type, long offset, long length, long entry pointer
+//   long pointer to the table (the last 8 bytes of the model)
+// The entry pointer is where the section is read from (the root node for
+// the index, and the index of the sentences for each corpus). The table may
+// also have an empty CHECKSUM entry whose entry pointer is the CRC-32 of the
+// model up to the table, which older readers skip as an unknown section.
+class InternalSections {
+    
+    public static final int PAGE_SIZE = 4096;
+    
+    public static final int SRC_CORPUS = 0;
+    public static final int TRG_CORPUS = 1;
+    public static final int PHRASES = 2; // Phrases and their translations
+    public static final int INDEX = 3; // Nodes of the trie
+    private static final int TYPES = 4;
+    private static final int CHECKSUM = 4; // Not a section, see above
+    
+    // Phrase or translation strings refer to the corpora
+    public static final int CORPUS_STRINGS = 1;
+    
+    private static final int MAX_TABLE_BYTES = 1 << 20;
+    
+    private int flags = 0;
+    private final long offsets[] = new long[TYPES];
+    private final long lengths[] = new long[TYPES];
+    private final long entries[] = new long[TYPES];
+    private long checksum = -1; // Unknown
+    
+    public InternalSections() {
+        Arrays.fill(offsets, -1);
+    }
+    
+    public void setFlag(int flag) {
+        flags |= flag;
+    }
+    
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+    
+    // Pads the model up to the next page and returns the offset of the section
+    public long begin(InternalDataWriter writer, int type) throws IOException {
+        offsets[type] = writer.align(PAGE_SIZE);
+        return offsets[type];
+    }
+    
+    public void end(InternalDataWriter writer, int type, long entry) {
+        lengths[type] = writer.getPointer() - offsets[type];
+        entries[type] = entry;
+    }
+    
+    // Includes the checksum if the writer computes it
+    public void write(InternalDataWriter writer) throws IOException {
+        checksum = writer.hasChecksum() ? writer.getChecksum() : -1;
+        final long pointer = writer.writeInt(flags);
+        writer.writeInt(checksum < 0 ? TYPES : TYPES + 1);
+        for (int type = 0; type < TYPES; type++) {
+            if (offsets[type] < 0) {
+                throw new IllegalStateException("Section not written: " + type);
+            }
+            writer.writeInt(type);
+            writer.writeLong(offsets[type]);
+            writer.writeLong(lengths[type]);
+            writer.writePointer(entries[type]);
+        }
+        if (checksum >= 0) {
+            writer.writeInt(CHECKSUM);
+            writer.writeLong(0);
+            writer.writeLong(0);
+            writer.writeLong(checksum);
+        }
+        writer.writePointer(pointer);
+    }
+    
+    // Sections of unknown types are ignored, so that they can be added
+    // without breaking older readers
+    public static InternalSections read(FileChannel fc) throws IOException {
+        final long size = fc.size();
+        final long pointer = read(fc, size - 8, 8).getLong(0);
+        if (pointer < 0 || pointer > size - 8 || size - 8 - pointer > MAX_TABLE_BYTES) {
+            throw new IllegalArgumentException("Invalid section table");
+        }
+        final ByteBuffer table = read(fc, pointer, (int)(size - 8 - pointer));
+        final InternalSections res = new InternalSections();
+        res.flags = table.getInt();
+        final int n = table.getInt();
+        for (int i = 0; i < n; i++) {
+            final int type = table.getInt();
+            final long offset = table.getLong(), length = table.getLong(), entry = table.getLong();
+            if (type == CHECKSUM) res.checksum = entry;
+            if (type < 0 || type >= TYPES) continue;
+            if (offset < 0 || length < 0 || offset + length > pointer) {
+                throw new IllegalArgumentException("Invalid section: " + type);
+            }
+            res.offsets[type] = offset;
+            res.lengths[type] = length;
+            res.entries[type] = entry;
+        }
+        for (int type = 0; type < TYPES; type++) {
+            if (res.offsets[type] < 0) {
+                throw new IllegalArgumentException("Missing section: " + type);
+            }
+        }
+        return res;
+    }
+    
+    public long getOffset(int type) {
+        return offsets[type];
+    }
+    
+    public long getLength(int type) {
+        return lengths[type];
+    }
+    
+    public long getEntry(int type) {
+        return entries[type];
+    }
+    
+    // CRC-32 of the model up to the table, or -1 for models built before it
+    // was stored
+    public long getChecksum() {
+        return checksum;
+    }
+    
+    // Reader for the given section alone, either memory mapped or read into
+    // the heap. Reading outside of it fails.
+    public InternalDataReader load(FileChannel fc, int type, int version, boolean inMemory) throws IOException {
+        return new InternalDataReader(
+                InternalDataReader.load(fc, offsets[type], lengths[type], inMemory), offsets[type], version);
+    }
+    
+    private static ByteBuffer read(FileChannel fc, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+}
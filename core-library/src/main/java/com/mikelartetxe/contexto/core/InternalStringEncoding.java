@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+
+// Since V6, phrase and translation strings start with a compressed header
+// whose lowest bits tell how they are stored:
+//   LITERAL: the header is followed by the string itself
+//   EXAMPLE: the string is the same as the corpus bytes of the example whose
+//            index is given in the header (the source side of an example of
+//            the first translation for phrases, and the target side of an
+//            example of the translation itself for translations)
+//   PREFIX:  the string starts with as many bytes of the source phrase as
+//            given in the header, followed by the rest of it (translations only)
+// The remaining bits of the header hold the length, example index or prefix
+// length, respectively. Older models store every string as a literal.
+class InternalStringEncoding {
+    
+    public static final int LITERAL = 0;
+    public static final int EXAMPLE = 1;
+    public static final int PREFIX = 2;
+    
+    private static final int TAG_BITS = 2;
+    private static final int TAG_MASK = (1 << TAG_BITS) - 1;
+    
+    // Encoder that stores every string as a literal
+    public static final Encoder LITERALS = new Encoder(null, null, false);
+    
+    private InternalStringEncoding() {}
+    
+    public static int readHeader(InternalDataReader data) {
+        if (data.getVersion() < InternalFormat.V6) {
+            return data.readCompressedInt() << TAG_BITS | LITERAL;
+        }
+        return data.readCompressedInt();
+    }
+    
+    public static int getTag(int header) {
+        return header & TAG_MASK;
+    }
+    
+    // Length of a literal, index of the referenced example or prefix length
+    public static int getValue(int header) {
+        return header >>> TAG_BITS;
+    }
+    
+    // Reads whatever follows the header of a literal or a prefix, given the
+    // source phrase in the latter case
+    public static byte[] readInline(InternalDataReader data, int header, byte phrase[]) {
+        if (getTag(header) == LITERAL) {
+            return data.readBytes(getValue(header));
+        } else if (getTag(header) == PREFIX) {
+            final int prefixLength = getValue(header);
+            if (phrase == null || prefixLength > phrase.length) {
+                throw new IllegalStateException("Invalid string prefix");
+            }
+            final byte suffix[] = data.readBytes(data.readCompressedInt());
+            final byte res[] = Arrays.copyOf(phrase, prefixLength + suffix.length);
+            System.arraycopy(suffix, 0, res, prefixLength, suffix.length);
+            return res;
+        }
+        throw new IllegalStateException("Unknown string tag: " + getTag(header));
+    }
+    
+    // Skips the string that starts at the current position
+    public static void skip(InternalDataReader data) {
+        final int header = readHeader(data);
+        if (getTag(header) == LITERAL) {
+            data.skip(getValue(header));
+        } else if (getTag(header) == PREFIX) {
+            data.skip(data.readCompressedInt());
+        }
+    }
+    
+    // Reads the example with the given index from a list of examples that
+    // starts at the current position
+    public static InternalPhrasePairExample readExample(InternalDataReader data, int index) {
+        final int examplesLength = data.readCompressedInt();
+        if (index >= examplesLength) {
+            throw new IllegalStateException("Invalid example reference");
+        }
+        for (int i = 0; i < index; i++) {
+            InternalPhrasePairExample.skip(data);
+        }
+        return data.readExample();
+    }
+    
+    
+    // Chooses how strings are stored when building a model. References to
+    // examples are only used if both corpora are given, and they are checked
+    // against the actual corpus bytes, so that they are always exact.
+    public static class Encoder {
+        
+        private final InternalCorpus srcCorpus, trgCorpus;
+        private final boolean sharedPrefixes;
+        
+        public Encoder(InternalCorpus srcCorpus, InternalCorpus trgCorpus, boolean sharedPrefixes) {
+            this.srcCorpus = srcCorpus;
+            this.trgCorpus = trgCorpus;
+            this.sharedPrefixes = sharedPrefixes;
+        }
+        
+        public void writePhraseString(InternalDataWriter data, byte string[],
+                InternalTranslation translations[]) throws IOException {
+            if (srcCorpus != null && translations.length > 0) {
+                final List<InternalPhrasePairExample> examples = translations[0].getExamples();
+                for (int i = 0; i < examples.size(); i++) {
+                    if (examples.get(i).getSrc().matches(srcCorpus, string)) {
+                        data.writeCompressedInt(i << TAG_BITS | EXAMPLE);
+                        return;
+                    }
+                }
+            }
+            writeLiteral(data, string);
+        }
+        
+        // Translations identical to the source phrase are always stored as a
+        // prefix of it, as they do not need to read the corpus then
+        public void writeTranslationString(InternalDataWriter data, byte string[], byte phrase[],
+                InternalPhrasePairExample examples[]) throws IOException {
+            final int prefixLength = sharedPrefixes ? commonPrefixLength(string, phrase) : 0;
+            if (prefixLength == string.length && prefixLength > 0) {
+                writePrefix(data, string, prefixLength);
+                return;
+            }
+            if (trgCorpus != null) {
+                for (int i = 0; i < examples.length; i++) {
+                    if (examples[i].getTrg().matches(trgCorpus, string)) {
+                        data.writeCompressedInt(i << TAG_BITS | EXAMPLE);
+                        return;
+                    }
+                }
+            }
+            final int literalSize = varIntSize(string.length << TAG_BITS) + string.length;
+            final int prefixSize = varIntSize(prefixLength << TAG_BITS) +
+                    varIntSize(string.length - prefixLength) + string.length - prefixLength;
+            if (prefixLength > 0 && prefixSize < literalSize) {
+                writePrefix(data, string, prefixLength);
+            } else {
+                writeLiteral(data, string);
+            }
+        }
+        
+        private static void writeLiteral(InternalDataWriter data, byte string[]) throws IOException {
+            data.writeCompressedInt(string.length << TAG_BITS | LITERAL);
+            data.writeBytes(string);
+        }
+        
+        private static void writePrefix(InternalDataWriter data, byte string[], int prefixLength) throws IOException {
+            data.writeCompressedInt(prefixLength << TAG_BITS | PREFIX);
+            data.writeCompressedInt(string.length - prefixLength);
+            data.writeBytes(string, prefixLength, string.length - prefixLength);
+        }
+        
+        private static int commonPrefixLength(byte a[], byte b[]) {
+            final int n = Math.min(a.length, b.length);
+            int i = 0;
+            while (i < n && a[i] == b[i]) i++;
+            return i;
+        }
+        
+        private static int varIntSize(int i) {
+            int size = 1;
+            while ((i & ~0x7F) != 0) {
+                i >>>= 7;
+                size++;
+            }
+            return size;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+
+// Best-first search of the phrases with the highest weight below a node, for
+// when more are needed than the ones stored in the node itself. The queue
+// holds phrases and unexplored subtrees, the latter ranked by their first top
+// descendant, which bounds the weight of any phrase in them. Subtrees are only
+// expanded when they reach the head of the queue, so the search stops as soon
+// as enough phrases have been found without visiting the rest of the trie.
+// Phrases are returned one at a time, so the search can be resumed for more,
+// and in the same order as the stored top descendants.
+class InternalTopKSearch {
+    
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private final InternalDataReader data;
+    private final InternalNodeCursor cursor, childCursor;
+    private final PriorityQueue<Candidate> queue = new PriorityQueue<>();
+    private long pointer, weight; // Of the current phrase
+    
+    // Searches below the node the cursor is at. The cursor is moved around
+    // during the search. Nodes are read from the index and phrase weights
+    // from the data.
+    public InternalTopKSearch(InternalDataReader index, InternalDataReader data, InternalNodeCursor cursor) {
+        this.data = data;
+        this.cursor = cursor;
+        childCursor = new InternalNodeCursor(index);
+        if (cursor.getTopDescendantLength() > 0) {
+            final long best = cursor.nextTopDescendant();
+            queue.add(Candidate.subtree(cursor.getPointer(), cursor.getTopDescendantWeight(), best));
+        }
+    }
+    
+    // Moves to the next phrase, returning false if there are no more
+    public boolean next() {
+        while (!queue.isEmpty()) {
+            final Candidate candidate = queue.poll();
+            if (!candidate.subtree) {
+                pointer = candidate.pointer;
+                weight = candidate.weight;
+                return true;
+            }
+            cursor.moveTo(candidate.pointer);
+            final long phrasePointer = cursor.getPhrasePointer();
+            if (phrasePointer != 0) {
+                queue.add(Candidate.phrase(phrasePointer, data.seek(phrasePointer).readPhraseWeight()));
+            }
+            for (int i = 0; i < cursor.getChildrenLength(); i++) {
+                childCursor.moveTo(cursor.getChildPointer(i));
+                if (childCursor.getTopDescendantLength() > 0) {
+                    final long best = childCursor.nextTopDescendant();
+                    queue.add(Candidate.subtree(childCursor.getPointer(), childCursor.getTopDescendantWeight(), best));
+                }
+            }
+        }
+        return false;
+    }
+    
+    public long getPointer() {
+        return pointer;
+    }
+    
+    public long getWeight() {
+        return weight;
+    }
+    
+    // Returns the pointers to the phrases ranked in [from, to) below the node
+    // the cursor is at. The result grows with the phrases found, as the range
+    // may be far larger than the number of phrases below the node.
+    public static long[] search(InternalDataReader index, InternalDataReader data,
+            InternalNodeCursor cursor, int from, int to) {
+        final InternalTopKSearch search = new InternalTopKSearch(index, data, cursor);
+        final int n = Math.max(0, to - from);
+        long res[] = new long[Math.min(n, INITIAL_CAPACITY)];
+        int found = 0;
+        while (found < to && search.next()) {
+            if (found >= from) {
+                if (found - from == res.length) {
+                    res = Arrays.copyOf(res, (int)Math.min(2L * res.length, n));
+                }
+                res[found - from] = search.getPointer();
+            }
+            found++;
+        }
+        
+        // Fewer phrases than requested
+        final int length = Math.max(0, found - from);
+        return length == res.length ? res : Arrays.copyOf(res, length);
+    }
+    
+    
+    private static class Candidate implements Comparable<Candidate> {
+        
+        public final long pointer; // To the phrase or the root of the subtree
+        public final boolean subtree;
+        private final long weight, best; // Weight and pointer of the best phrase
+        
+        private Candidate(long pointer, boolean subtree, long weight, long best) {
+            this.pointer = pointer;
+            this.subtree = subtree;
+            this.weight = weight;
+            this.best = best;
+        }
+        
+        public static Candidate phrase(long pointer, long weight) {
+            return new Candidate(pointer, false, weight, pointer);
+        }
+        
+        public static Candidate subtree(long pointer, long weight, long best) {
+            return new Candidate(pointer, true, weight, best);
+        }
+        
+        @Override
+        public int compareTo(Candidate other) {
+            // Higher weight first, and higher pointer first in case of tie
+            final int aux = Long.compare(other.weight, this.weight);
+            return aux == 0 ? Long.compare(other.best, this.best) : aux;
+        }
+        
+    }
+    
+}
@@ -19,37 +19,30 @@ package com.mikelartetxe.contexto.core;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 class InternalTranslation {
     
-    // TODO Extract the string from the examples instead of saving it explicitly
+    private static final Charset CHARSET = Charset.forName("utf-8");
+    
     private final long occurrences;
     private final byte string[];
     private final InternalPhrasePairExample examples[];
     
-    private InternalTranslation(String s) {
-        final String fields[] = s.split("\t");
-        final String exampleCodes[] = fields[2].split(" ");
-        string = fields[0].getBytes(Charset.forName("utf-8")); // TODO Hardcoded charset
-        occurrences = Long.parseLong(fields[1]);
-        examples = new InternalPhrasePairExample[exampleCodes.length];
-        for (int i = 0; i < examples.length; i++) {
-            examples[i] = InternalPhrasePairExample.parse(exampleCodes[i]);
-        }
+    public InternalTranslation(byte string[], long occurrences, InternalPhrasePairExample examples[]) {
+        this.string = string;
+        this.occurrences = occurrences;
+        this.examples = examples;
     }
     
-    private InternalTranslation(InternalDataReader data) {
+    private InternalTranslation(InternalDataReader data, byte phrase[], InternalCorpus trgCorpus) {
         // Read weight
         occurrences = data.readCompressedLong();
         
         // Read string
-        final int stringLength = data.readCompressedInt();
-        string = new byte[stringLength];
-        for (int i = 0; i < stringLength; i++) {
-            string[i] = data.readByte();
-        }
+        string = readBytes(data, phrase, trgCorpus);
         
         // Read examples
         final int examplesLength = data.readCompressedInt();
@@ -58,14 +51,14 @@ class InternalTranslation {
             examples[i] = data.readExample();
         }
     }
-        
-    public long write(InternalDataWriter data) throws IOException {
+    
+    // The string of the phrase is needed to share a prefix with it
+    public long write(InternalDataWriter data, byte phrase[], InternalStringEncoding.Encoder strings) throws IOException {
         // Write weight
         final long pointer = data.writeCompressedLong(occurrences);
         
         // Write string
-        data.writeCompressedInt(string.length);
-        for (byte b : string) data.writeByte(b);
+        strings.writeTranslationString(data, string, phrase, examples);
         
         // Write examples
         data.writeCompressedInt(examples.length);
@@ -76,7 +69,11 @@ class InternalTranslation {
     }
     
     public String getString() {
-        return new String(string, Charset.forName("utf-8")); // TODO Hardcoded charset
+        return new String(string, CHARSET);
+    }
+    
+    public byte[] getBytes() {
+        return string;
     }
     
     public long getNumberOfOccurrences() {
@@ -87,12 +84,51 @@ class InternalTranslation {
         return Arrays.asList(examples);
     }
     
-    public static InternalTranslation read(InternalDataReader data) {
-        return new InternalTranslation(data);
+    public static InternalTranslation read(InternalDataReader data, byte phrase[], InternalCorpus trgCorpus) {
+        return new InternalTranslation(data, phrase, trgCorpus);
+    }
+    
+    // The following methods decode individual fields lazily, each of them
+    // reading the translation that starts at the current position
+    
+    public static long readNumberOfOccurrences(InternalDataReader data) {
+        return data.readCompressedLong();
+    }
+    
+    public static String readString(InternalDataReader data, byte phrase[], InternalCorpus trgCorpus) {
+        data.readCompressedLong(); // Skip weight
+        return new String(readBytes(data, phrase, trgCorpus), CHARSET);
+    }
+    
+    public static List<InternalPhrasePairExample> readExamples(InternalDataReader data, int max) {
+        data.readCompressedLong(); // Skip weight
+        InternalStringEncoding.skip(data); // Skip string
+        final int examplesLength = Math.min(data.readCompressedInt(), max);
+        final List<InternalPhrasePairExample> res = new ArrayList<>(examplesLength);
+        for (int i = 0; i < examplesLength; i++) {
+            res.add(data.readExample());
+        }
+        return res;
     }
     
-    public static InternalTranslation parse(String s) {
-        return new InternalTranslation(s);
+    public static void skip(InternalDataReader data) {
+        data.readCompressedLong(); // Skip weight
+        InternalStringEncoding.skip(data); // Skip string
+        final int examplesLength = data.readCompressedInt();
+        for (int i = 0; i < examplesLength; i++) {
+            InternalPhrasePairExample.skip(data);
+        }
+    }
+    
+    // Reads the string that starts at the current position, which might be
+    // taken from one of the examples that follow it
+    private static byte[] readBytes(InternalDataReader data, byte phrase[], InternalCorpus trgCorpus) {
+        final int header = InternalStringEncoding.readHeader(data);
+        if (InternalStringEncoding.getTag(header) != InternalStringEncoding.EXAMPLE) {
+            return InternalStringEncoding.readInline(data, header, phrase);
+        }
+        return InternalStringEncoding.readExample(data.seek(data.getPointer()), InternalStringEncoding.getValue(header))
+                .getTrg().getPhraseBytes(trgCorpus);
     }
     
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+
+// Builds the trie from phrases given in byte order. Only the path to the last
+// phrase is kept in memory, and nodes are written in post-order as soon as
+// no more phrases can be added below them. The memory used by the nodes in
+// the path is tracked, so its peak can be reported once the trie is built.
+class InternalTrieBuilder {
+    
+    private final InternalNode.Sink sink;
+    private final int topDescendants;
+    private final Deque<InternalNode.Builder> stack = new ArrayDeque<>();
+    private long phrases = 0, nodes = 0;
+    private long peakMemoryBytes = 0;
+    
+    public InternalTrieBuilder(final InternalDataWriter writer, int topDescendants) {
+        this(new InternalNode.Sink() {
+            @Override
+            public long write(InternalNode node) throws IOException {
+                return writer.writeNode(node);
+            }
+        }, topDescendants);
+    }
+    
+    // Nodes are given to the sink as soon as they are complete
+    public InternalTrieBuilder(InternalNode.Sink sink, int topDescendants) {
+        this.sink = sink;
+        this.topDescendants = topDescendants;
+        stack.push(new InternalNode.Builder(new byte[]{}, topDescendants));
+    }
+    
+    public void add(byte src[], long phrasePointer, long phraseWeight) throws IOException {
+        final byte top[] = stack.peek().getString();
+        final int minLength = src.length < top.length ? src.length : top.length;
+        int matchLength = minLength;
+        for (int i = 0; i < minLength; i++) {
+            final int src_i = src[i] & 0xFF; // to unsigned int
+            final int top_i = top[i] & 0xFF; // to unsigned int
+            if (src_i < top_i) {
+                throw new RuntimeException("Unsorted input");
+            } else if (src_i > top_i) {
+                matchLength = i;
+                break;
+            }
+        }
+        if (matchLength == minLength && top.length >= src.length) {
+            throw new RuntimeException("Unsorted input");
+        }
+        
+        InternalNode.Builder newNode = new InternalNode.Builder(src, topDescendants);
+        newNode.setPhrase(phrasePointer, phraseWeight);
+        while (true) {
+            InternalNode.Builder node = stack.pop();
+            InternalNode.Builder prevNode = stack.peek();
+            int nodeLength = node.length();
+            int prevNodeLength = prevNode == null ? -1 : prevNode.length();
+            if (prevNodeLength > matchLength) {
+                addChild(prevNode, node, prevNode.length());
+            } else if (prevNodeLength == matchLength) {
+                addChild(prevNode, node, prevNode.length());
+                stack.push(newNode);
+                break;
+            } else if (nodeLength == matchLength) {
+                stack.push(node);
+                stack.push(newNode);
+                break;
+            } else {
+                InternalNode.Builder parent = new InternalNode.Builder(Arrays.copyOf(src, matchLength), topDescendants);
+                addChild(parent, node, matchLength);
+                stack.push(parent);
+                stack.push(newNode);
+                break;
+            }
+        }
+        phrases++;
+        updatePeakMemory();
+    }
+    
+    private void addChild(InternalNode.Builder parent, InternalNode.Builder child, int index) throws IOException {
+        parent.addChild(child, index, sink);
+        nodes++;
+    }
+    
+    private void updatePeakMemory() {
+        long bytes = 0;
+        for (InternalNode.Builder node : stack) {
+            bytes += node.memoryBytes();
+        }
+        peakMemoryBytes = Math.max(peakMemoryBytes, bytes);
+    }
+    
+    // Writes the remaining nodes and returns the pointer to the root
+    public long finish() throws IOException {
+        while (stack.size() > 1) {
+            InternalNode.Builder node = stack.pop();
+            InternalNode.Builder prevNode = stack.peek();
+            addChild(prevNode, node, prevNode.length());
+            updatePeakMemory();
+        }
+        nodes++;
+        return sink.write(stack.pop().build(0));
+    }
+    
+    public long getPhrases() {
+        return phrases;
+    }
+    
+    public long getNodes() {
+        return nodes;
+    }
+    
+    // Approximate peak heap memory used by the nodes being built
+    public long getPeakMemoryBytes() {
+        return peakMemoryBytes;
+    }
+    
+}
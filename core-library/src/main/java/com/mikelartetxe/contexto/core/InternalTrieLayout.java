@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+// Keeps the nodes of a trie in a temporary file as they are built, so that
+// they can be written to the model after the phrases, in a section of their
+// own. Nodes are written either in the post-order they are built in, or in
+// an order that keeps them close to the nodes they are reached from:
+// breadth-first for the top levels and in clusters of connected nodes that
+// fill a page below them, so that a lookup touches as few pages as possible.
+// In post-order, nodes are streamed from the file to the model with only the
+// pointers to the nodes still waiting for their parent in memory. The other
+// order needs the shape of the whole trie, which takes about 32 bytes per
+// node, so it is limited to as many nodes as fit in an array.
+class InternalTrieLayout implements InternalNode.Sink, Closeable {
+    
+    private static final int BREADTH_FIRST_LEVELS = 2;
+    private static final int MIN_CLUSTER_BYTES = InternalSections.PAGE_SIZE / 8; // Smaller clusters also take the next page
+    private static final int MAX_NODES = Integer.MAX_VALUE - 8; // Largest array the JVM allocates
+    
+    private final boolean localityOrder;
+    private final File file;
+    private final OutputStream os;
+    private final InternalDataWriter temp;
+    private final long start; // Offset of the first record in the temporary file
+    private long offsets[]; // Offset of the record of each node, only for the locality order
+    private long nodes = 0;
+    private long peakMemoryBytes = 0;
+    
+    public InternalTrieLayout(File tempDirectory, boolean localityOrder) throws IOException {
+        this.localityOrder = localityOrder;
+        file = File.createTempFile("contexto-trie-", ".bin", tempDirectory);
+        os = new BufferedOutputStream(new FileOutputStream(file));
+        temp = new InternalDataWriter(os);
+        InternalFormat.writeHeader(temp); // So that it can be read back as a model
+        start = temp.getPointer();
+        if (localityOrder) offsets = new long[1024];
+    }
+    
+    // Nodes are identified by their index plus one until they are written, as
+    // 0 stands for the null pointer
+    @Override
+    public long write(InternalNode node) throws IOException {
+        final long offset = node.writeRecord(temp);
+        if (localityOrder) {
+            if (nodes == MAX_NODES) {
+                throw new IllegalStateException("Too many nodes for the locality order");
+            }
+            if (nodes == offsets.length) {
+                offsets = Arrays.copyOf(offsets, (int)Math.min(2 * nodes, MAX_NODES));
+                updatePeakMemory(8L * offsets.length);
+            }
+            offsets[(int)nodes] = offset;
+        }
+        return ++nodes;
+    }
+    
+    // Writes all the nodes to the model and returns the pointer to the root
+    public long finish(long root, InternalDataWriter writer) throws IOException {
+        final long end = temp.getPointer();
+        os.close();
+        try (final FileChannel fc = new RandomAccessFile(file, "r").getChannel()) {
+            final InternalDataReader data = new InternalDataReader(InternalDataReader.load(fc, false));
+            try {
+                return localityOrder ?
+                        writeLocalityOrder((int)root - 1, data, end, writer) :
+                        writePostOrder(root, data, end, writer);
+            } finally {
+                data.unmap(); // So that close can delete the file right away
+            }
+        }
+    }
+    
+    // Each node comes right after its subtree, so its children are the last
+    // nodes written that are still waiting for their parent
+    private long writePostOrder(long root, InternalDataReader data, long end, InternalDataWriter writer) throws IOException {
+        if (root != nodes) {
+            throw new IllegalStateException("The root is not the last node");
+        }
+        long waiting[] = new long[64];
+        int waitingLength = 0;
+        data.setPointer(start);
+        while (data.getPointer() < end) {
+            final InternalNode node = InternalNode.readRecord(data);
+            final int childrenLength = node.getChildrenLength();
+            if (childrenLength > waitingLength) {
+                throw new IllegalStateException("Nodes not in post-order");
+            }
+            waitingLength -= childrenLength;
+            final long childrenPointers[] = Arrays.copyOfRange(waiting, waitingLength, waitingLength + childrenLength);
+            if (waitingLength == waiting.length) {
+                waiting = Arrays.copyOf(waiting, 2 * waitingLength);
+                updatePeakMemory(8L * waiting.length);
+            }
+            waiting[waitingLength++] = writer.writeNode(node.relocate(childrenPointers));
+        }
+        if (waitingLength != 1) {
+            throw new IllegalStateException("Nodes not reachable from the root");
+        }
+        return waiting[0];
+    }
+    
+    private long writeLocalityOrder(int root, InternalDataReader data, long end, InternalDataWriter writer) throws IOException {
+        // Read the children of each node
+        final int n = (int)nodes;
+        final int childrenStarts[] = new int[n + 1];
+        final int children[] = new int[Math.max(0, n - 1)];
+        updatePeakMemory(8L * offsets.length + 4L * (childrenStarts.length + children.length));
+        for (int i = 0, k = 0; i < n; i++) {
+            final InternalNode node = InternalNode.readRecord(data.seek(offsets[i]));
+            childrenStarts[i] = k;
+            for (int j = 0; j < node.getChildrenLength(); j++) {
+                children[k++] = (int)node.getChildPointer(j) - 1;
+            }
+            childrenStarts[i + 1] = k;
+        }
+        final int order[] = localityOrder(root, childrenStarts, children, end);
+        
+        // Nodes come after their children, so each of them is written once,
+        // and the offset of its record is then replaced with its pointer
+        for (int node : order) {
+            final long childrenPointers[] = new long[childrenStarts[node + 1] - childrenStarts[node]];
+            for (int i = 0; i < childrenPointers.length; i++) {
+                childrenPointers[i] = offsets[children[childrenStarts[node] + i]];
+            }
+            final InternalNode record = InternalNode.readRecord(data.seek(offsets[node]));
+            offsets[node] = writer.writeNode(record.relocate(childrenPointers));
+        }
+        return offsets[root];
+    }
+    
+    // Size of the record of the node, as an estimate of its size in the model
+    private int estimatedSize(int node, long end) {
+        return (int)((node + 1 < nodes ? offsets[node + 1] : end) - offsets[node]);
+    }
+    
+    // The top levels are laid out breadth-first. Below them, each cluster is
+    // filled breadth-first from its first node until the current page is
+    // full, and the nodes left out start new clusters in depth-first order.
+    // The order is then reversed, so that nodes come after their children as
+    // in post-order, and pages are estimated from the record sizes counting
+    // from the start of the index section, which is page-aligned.
+    private int[] localityOrder(int root, int childrenStarts[], int children[], long end) {
+        final int length = (int)nodes;
+        final int order[] = new int[length];
+        int n = 0;
+        order[n++] = root;
+        int levelStart = 0;
+        for (int level = 1; level < BREADTH_FIRST_LEVELS; level++) {
+            final int levelEnd = n;
+            for (int i = levelStart; i < levelEnd; i++) {
+                for (int k = childrenStarts[order[i]]; k < childrenStarts[order[i] + 1]; k++) {
+                    order[n++] = children[k];
+                }
+            }
+            levelStart = levelEnd;
+        }
+        final long total = end - start; // Estimated size of the section
+        long position = 0; // Of the nodes laid out so far, which end the section
+        for (int i = 0; i < n; i++) {
+            position += estimatedSize(order[i], end);
+        }
+        
+        // Clusters yet to be filled, with the next one at the top of the stack
+        final int stack[] = new int[length];
+        int stackSize = 0;
+        for (int i = n - 1; i >= levelStart; i--) {
+            for (int k = childrenStarts[order[i] + 1] - 1; k >= childrenStarts[order[i]]; k--) {
+                stack[stackSize++] = children[k];
+            }
+        }
+        final int queue[] = new int[length];
+        final int left[] = new int[length];
+        updatePeakMemory(8L * offsets.length + 4L * (childrenStarts.length + children.length) + 16L * length);
+        while (stackSize > 0) {
+            // The cluster ends where the nodes laid out so far start
+            int capacity = (int)((total - position) % InternalSections.PAGE_SIZE);
+            if (capacity == 0) capacity = InternalSections.PAGE_SIZE;
+            if (capacity < MIN_CLUSTER_BYTES) capacity += InternalSections.PAGE_SIZE;
+            int head = 0, tail = 0, leftSize = 0, used = 0;
+            queue[tail++] = stack[--stackSize];
+            while (head < tail) {
+                final int node = queue[head++];
+                if (used > 0 && used + estimatedSize(node, end) > capacity) {
+                    left[leftSize++] = node;
+                    continue;
+                }
+                order[n++] = node;
+                used += estimatedSize(node, end);
+                for (int k = childrenStarts[node]; k < childrenStarts[node + 1]; k++) {
+                    queue[tail++] = children[k];
+                }
+            }
+            position += used;
+            while (leftSize > 0) {
+                stack[stackSize++] = left[--leftSize];
+            }
+        }
+        if (n != length) {
+            throw new IllegalStateException("Nodes not reachable from the root");
+        }
+        
+        // Reversed, see above
+        for (int i = 0, j = length - 1; i < j; i++, j--) {
+            final int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        return order;
+    }
+    
+    private void updatePeakMemory(long bytes) {
+        peakMemoryBytes = Math.max(peakMemoryBytes, bytes);
+    }
+    
+    // Approximate peak heap memory used to lay out the nodes
+    public long getPeakMemoryBytes() {
+        return peakMemoryBytes;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        os.close();
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit(); // Still mapped if the JVM could not unmap it
+        }
+    }
+    
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+
+// Snapshot of the state of the result cache of a ContextDictionary
+public class ResultCacheStats {
+    
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long size;
+    private final long weight;
+    private final long maxWeight;
+    
+    ResultCacheStats(long hits, long misses, long evictions, long size, long weight, long maxWeight) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+        this.weight = weight;
+        this.maxWeight = maxWeight;
+    }
+    
+    public long getHits() {
+        return hits;
+    }
+    
+    public long getMisses() {
+        return misses;
+    }
+    
+    public double getHitRatio() {
+        return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+    }
+    
+    public long getEvictions() {
+        return evictions;
+    }
+    
+    // Number of cached results
+    public long getSize() {
+        return size;
+    }
+    
+    // Estimated heap memory used by the cached results
+    public long getWeight() {
+        return weight;
+    }
+    
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+    
+    @Override
+    public String toString() {
+        return "ResultCacheStats{hits=" + hits + ", misses=" + misses +
+                ", evictions=" + evictions + ", size=" + size +
+                ", weight=" + weight + ", maxWeight=" + maxWeight + "}";
+    }
+    
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+
+// Several models, each with its own corpora, queried as if they were one,
+// so that new data can be added as a small model of its own instead of
+// rebuilding everything. Translations are merged by their counts, and their
+// examples are taken from each model in proportion to the counts there.
+// Suggestions are merged with the threshold algorithm: the suggestions of
+// each model are read one at a time, their total weight is looked up in the
+// rest, and more are read until no phrase left out can beat the last one in.
+// Models can be merged into one with ContextDictionary.mergeBinaryModels.
+public class SegmentedDictionary implements Closeable {
+    
+    private static final String OTHERS = "$OTHERS$";
+    
+    private final List<ContextDictionary> segments;
+    private final int storedSuggestions;
+    
+    public SegmentedDictionary(List<ContextDictionary> segments) {
+        if (segments.isEmpty()) {
+            throw new IllegalArgumentException("No segments");
+        }
+        this.segments = Collections.unmodifiableList(new ArrayList<>(segments));
+        int stored = 0;
+        for (ContextDictionary segment : segments) {
+            stored = Math.max(stored, segment.getStoredSuggestions());
+        }
+        storedSuggestions = stored;
+    }
+    
+    public List<ContextDictionary> getSegments() {
+        return segments;
+    }
+    
+    public boolean hasCorpora() {
+        for (ContextDictionary segment : segments) {
+            if (!segment.hasCorpora()) return false;
+        }
+        return true;
+    }
+    
+    public List<Translation> search(String query) {
+        return search(query, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+    
+    // Translations are sorted by their total count, with $OTHERS$ last and
+    // ties in the order they are first found in the segments
+    public List<Translation> search(String query, int maxTranslations, int maxExamples) {
+        if (maxTranslations < 0 || maxExamples < 0) {
+            throw new IllegalArgumentException("Negative number of translations or examples");
+        }
+        final Map<String, MergedTranslation> merged = new LinkedHashMap<>();
+        long total = 0;
+        for (ContextDictionary segment : segments) {
+            for (Translation translation : segment.search(query, Integer.MAX_VALUE, maxExamples)) {
+                MergedTranslation t = merged.get(translation.getTranslation());
+                if (t == null) {
+                    t = new MergedTranslation(translation.getTranslation(), maxExamples);
+                    merged.put(translation.getTranslation(), t);
+                }
+                t.add(translation);
+                total += translation.getOccurrences();
+            }
+        }
+        final List<MergedTranslation> res = new ArrayList<>(merged.values());
+        Collections.sort(res, BY_OCCURRENCES);
+        for (MergedTranslation t : res) {
+            t.total = total;
+        }
+        return Collections.<Translation>unmodifiableList(res.subList(0, Math.min(res.size(), maxTranslations)));
+    }
+    
+    // Returns as many suggestions as the segment that stores the most of them
+    // in each node (see ContextDictionary.autocomplete)
+    public List<String> autocomplete(String query) {
+        return autocomplete(query, storedSuggestions, 0);
+    }
+    
+    // Returns the suggestions ranked in [offset, offset+k) by their total
+    // weight. Ties are broken by the first segment with the phrase and then
+    // as in that segment, so a single segment returns the same suggestions
+    // as the dictionary itself.
+    public List<String> autocomplete(String query, int k, int offset) {
+        if (k < 0 || offset < 0) {
+            throw new IllegalArgumentException("Negative number of suggestions or offset");
+        }
+        final int n = (int)Math.min((long)offset + k, Integer.MAX_VALUE);
+        if (k == 0) return Collections.emptyList();
+        final ContextDictionary.Suggestions streams[] = new ContextDictionary.Suggestions[segments.size()];
+        final boolean exhausted[] = new boolean[segments.size()];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = segments.get(i).suggestions(query);
+        }
+        final Map<String, Suggestion> seen = new HashMap<>();
+        final PriorityQueue<Suggestion> best = new PriorityQueue<>(16, Collections.reverseOrder(BY_RANK)); // Worst first
+        while (true) {
+            // The next suggestion of each segment, with its total weight
+            // looked up in the rest
+            for (int i = 0; i < streams.length; i++) {
+                if (exhausted[i]) continue;
+                if (!streams[i].next()) {
+                    exhausted[i] = true;
+                    continue;
+                }
+                final String phrase = streams[i].getPhrase();
+                if (!seen.containsKey(phrase)) {
+                    final Suggestion suggestion = suggestion(phrase, i, streams[i], exhausted);
+                    seen.put(phrase, suggestion);
+                    best.add(suggestion);
+                    if (best.size() > n) best.poll();
+                }
+            }
+            
+            // Phrases not seen yet weigh at most the last one seen in each
+            // segment, and they come after it in the first of them
+            long threshold = 0;
+            int first = -1;
+            for (int i = 0; i < streams.length; i++) {
+                if (exhausted[i]) continue;
+                threshold += streams[i].getWeight();
+                if (first < 0) first = i;
+            }
+            if (first < 0 || (best.size() == n && BY_RANK.compare(best.peek(),
+                    new Suggestion(null, threshold, first, streams[first].getPointer())) <= 0)) {
+                break;
+            }
+        }
+        final List<Suggestion> ranked = new ArrayList<>(best);
+        Collections.sort(ranked, BY_RANK);
+        final List<String> res = new ArrayList<>();
+        for (int i = offset; i < ranked.size(); i++) {
+            res.add(ranked.get(i).phrase);
+        }
+        return Collections.unmodifiableList(res);
+    }
+    
+    // The phrase was just returned by the given segment. Segments whose
+    // suggestions have all been seen do not have it.
+    private Suggestion suggestion(String phrase, int segment, ContextDictionary.Suggestions stream, boolean exhausted[]) {
+        long weight = stream.getWeight();
+        int first = segment;
+        long pointer = stream.getPointer();
+        for (int i = 0; i < segments.size(); i++) {
+            if (i == segment || exhausted[i]) continue;
+            final long p = segments.get(i).getPhrasePointer(phrase);
+            if (p == 0) continue;
+            weight += segments.get(i).getPhraseWeight(p);
+            if (i < first) {
+                first = i;
+                pointer = p;
+            }
+        }
+        return new Suggestion(phrase, weight, first, pointer);
+    }
+    
+    // Unmaps all the segments (see ContextDictionary.close)
+    @Override
+    public void close() {
+        for (ContextDictionary segment : segments) {
+            segment.close();
+        }
+    }
+    
+    public static SegmentedDictionary fromBinaryModels(List<File> files) throws IOException {
+        return fromBinaryModels(files, new DictionaryOptions());
+    }
+    
+    public static SegmentedDictionary fromBinaryModels(List<File> files, DictionaryOptions options) throws IOException {
+        final List<ContextDictionary> segments = new ArrayList<>(files.size());
+        for (File file : files) {
+            segments.add(ContextDictionary.fromBinaryModel(file, options));
+        }
+        return new SegmentedDictionary(segments);
+    }
+    
+    private static final Comparator<MergedTranslation> BY_OCCURRENCES = new Comparator<MergedTranslation>() {
+        @Override
+        public int compare(MergedTranslation a, MergedTranslation b) {
+            final boolean aOthers = a.translation.equals(OTHERS), bOthers = b.translation.equals(OTHERS);
+            if (aOthers != bOthers) return aOthers ? 1 : -1;
+            return Long.compare(b.occurrences, a.occurrences);
+        }
+    };
+    
+    // Higher weight first, then lower segment and higher pointer there
+    private static final Comparator<Suggestion> BY_RANK = new Comparator<Suggestion>() {
+        @Override
+        public int compare(Suggestion a, Suggestion b) {
+            int aux = Long.compare(b.weight, a.weight);
+            if (aux == 0) aux = Integer.compare(a.segment, b.segment);
+            return aux == 0 ? Long.compare(b.pointer, a.pointer) : aux;
+        }
+    };
+    
+    
+    private static class Suggestion {
+        
+        public final String phrase;
+        public final long weight; // In all the segments
+        public final int segment; // First with the phrase
+        public final long pointer; // In that segment
+        
+        public Suggestion(String phrase, long weight, int segment, long pointer) {
+            this.phrase = phrase;
+            this.weight = weight;
+            this.segment = segment;
+            this.pointer = pointer;
+        }
+        
+    }
+    
+    private static class MergedTranslation implements Translation {
+        
+        private final String translation;
+        private final int maxExamples;
+        private final List<Translation> parts = new ArrayList<>(); // The translation in each segment
+        private long occurrences = 0, total;
+        private List<TranslationExample> examples;
+        
+        public MergedTranslation(String translation, int maxExamples) {
+            this.translation = translation;
+            this.maxExamples = maxExamples;
+        }
+        
+        public void add(Translation part) {
+            parts.add(part);
+            occurrences += part.getOccurrences();
+        }
+        
+        @Override
+        public String getTranslation() {
+            return translation;
+        }
+        
+        @Override
+        public double getFrequency() {
+            return (double)occurrences / total;
+        }
+        
+        @Override
+        public long getOccurrences() {
+            return occurrences;
+        }
+        
+        // Each example is taken from the segment with the most occurrences
+        // per example taken so far, so that they are in proportion to the
+        // occurrences in each segment as far as their examples allow
+        @Override
+        public List<TranslationExample> getExamples() {
+            if (examples == null) {
+                final List<List<TranslationExample>> sources = new ArrayList<>(parts.size());
+                final int taken[] = new int[parts.size()];
+                final List<TranslationExample> res = new ArrayList<>();
+                for (Translation part : parts) {
+                    sources.add(part.getExamples());
+                }
+                while (res.size() < maxExamples) {
+                    int best = -1;
+                    for (int i = 0; i < parts.size(); i++) {
+                        if (taken[i] == sources.get(i).size()) continue;
+                        if (best < 0 || (double)parts.get(i).getOccurrences() / (taken[i] + 1) >
+                                (double)parts.get(best).getOccurrences() / (taken[best] + 1)) {
+                            best = i;
+                        }
+                    }
+                    if (best < 0) break;
+                    res.add(sources.get(best).get(taken[best]++));
+                }
+                examples = Collections.unmodifiableList(res);
+            }
+            return examples;
+        }
+        
+    }
+    
+}
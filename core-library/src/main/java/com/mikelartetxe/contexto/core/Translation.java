@@ -23,6 +23,7 @@ public interface Translation {
     
     public String getTranslation();
     public double getFrequency();
+    public long getOccurrences();
     public List<TranslationExample> getExamples();
     
 }
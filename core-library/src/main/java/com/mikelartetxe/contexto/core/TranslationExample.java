@@ -27,4 +27,15 @@ public interface TranslationExample {
     public String getTrgPhrase();
     public String getTrgRightContext();
     
+    // The whole sentences as UTF-8 bytes, with the byte offsets where the
+    // phrase starts and ends in them, so that the contexts and the phrase can
+    // be used without decoding them (e.g. to write them out as they are)
+    public byte[] getSrcSentenceBytes();
+    public int getSrcPhraseStart();
+    public int getSrcPhraseEnd();
+    
+    public byte[] getTrgSentenceBytes();
+    public int getTrgPhraseStart();
+    public int getTrgPhraseEnd();
+    
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+
+// Compares the phrase pairs extracted from a small corpus with those of
+// training/extract_phrases.py, which were generated with
+//   python3 extract_phrases.py src.txt trg.txt src.tok.txt trg.tok.txt align.txt \
+//       -o expected.txt 2> warnings.txt
+// The corpus covers tokenization mismatches, case and whitespace differences,
+// unaligned words, punctuation, phrase length limits and bytes that are not
+// valid UTF-8. Regenerate the expected files if the script changes.
+public class InternalPhraseExtractorTest {
+    
+    private static final Charset CHARSET = Charset.forName("utf-8");
+    private static final String FIXTURE = "extract_phrases/";
+    
+    @Test
+    public void matchesScript() throws IOException {
+        for (int threads : new int[]{1, 4}) {
+            final ByteArrayOutputStream warnings = new ByteArrayOutputStream();
+            final byte records[] = extract("align.txt", false, threads, warnings);
+            assertArrayEquals("Phrase pairs with " + threads + " threads", read("expected.txt"), records);
+            assertEquals("Warnings with " + threads + " threads",
+                    new String(read("warnings.txt"), CHARSET), new String(warnings.toByteArray(), CHARSET));
+        }
+    }
+    
+    @Test
+    public void matchesScriptWithReversedAlignments() throws IOException {
+        assertArrayEquals(read("expected.txt"), extract("align.reverse.txt", true, 1, new ByteArrayOutputStream()));
+    }
+    
+    // The script takes the minimum of the maximum when recording the source
+    // words aligned with each target word, so it only keeps the last one and
+    // never checks the first. Pairs that a target word shares with a source
+    // word outside the phrase are thus extracted depending on the order of
+    // the links. Models must be built the same way by both, so this should
+    // only change along with the script.
+    @Test
+    public void keepsLastSourceWordOfEachTargetWord() throws IOException {
+        final List<String> records = lines(extract("align.txt", false, 1, null));
+        final String message = "Not extracted as by extract_phrases.py";
+        // x y z aligned with a b c as 0-1 2-1 1-0 1-2 (line 9)
+        assertTrue(message, records.contains("c\ty\t8:4:5:2:3"));
+        assertTrue(message, records.contains("b c\tx y z\t8:2:5:0:5"));
+        assertFalse(message, records.contains("a\ty\t8:0:1:2:3"));
+        // The same links as 2-1 0-1 1-0 1-2 (line 10)
+        assertTrue(message, records.contains("a\ty\t9:0:1:2:3"));
+        assertTrue(message, records.contains("c\ty\t9:4:5:2:3"));
+    }
+    
+    private byte[] extract(String alignment, boolean reverse, int threads, ByteArrayOutputStream warnings) throws IOException {
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        try (final InputStream src = open("src.txt");
+                final InputStream trg = open("trg.txt");
+                final InputStream srcTok = open("src.tok.txt");
+                final InputStream trgTok = open("trg.tok.txt");
+                final InputStream align = open(alignment);
+                final InternalPhraseExtractor extractor = new InternalPhraseExtractor(src, trg, srcTok, trgTok, align,
+                        reverse, threads, warnings == null ? null : new PrintStream(warnings, true, "UTF-8"))) {
+            for (byte record[] = extractor.next(); record != null; record = extractor.next()) {
+                res.write(record);
+                res.write('\n');
+            }
+        }
+        return res.toByteArray();
+    }
+    
+    private InputStream open(String name) throws IOException {
+        final InputStream is = getClass().getResourceAsStream(FIXTURE + name);
+        if (is == null) {
+            throw new IOException("Missing fixture: " + name);
+        }
+        return is;
+    }
+    
+    private byte[] read(String name) throws IOException {
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        try (final InputStream is = open(name)) {
+            final byte buffer[] = new byte[4096];
+            for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+                res.write(buffer, 0, n);
+            }
+        }
+        return res.toByteArray();
+    }
+    
+    private static List<String> lines(byte records[]) {
+        final List<String> res = new ArrayList<>();
+        for (String line : new String(records, CHARSET).split("\n")) {
+            res.add(line);
+        }
+        return res;
+    }
+    
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.web;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+// Writes a line per request from a thread of its own, so that requests never
+// wait for the stream, which is synchronized and may block on a slow pipe or
+// terminal. Lines are queued and written in batches with a single flush each,
+// and if the queue is full they are dropped and counted instead. Below a
+// sampling rate of 1, only that fraction of the requests is logged, except
+// for failed ones, which are always logged.
+class AccessLog {
+    
+    private static final int MAX_BATCH = 1024;
+    
+    private final PrintStream out;
+    private final double sampleRate;
+    private final BlockingQueue<Entry> queue;
+    private final RequestMetrics metrics;
+    
+    public AccessLog(PrintStream out, double sampleRate, int queueSize, RequestMetrics metrics) {
+        this.out = out;
+        this.sampleRate = sampleRate;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.metrics = metrics;
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "contexto-access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    // Whether to log a request, so that the line is only built if needed
+    public boolean isSampled(boolean failed) {
+        return failed || sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+    
+    public void log(String line) {
+        if (!queue.offer(new Entry(System.currentTimeMillis(), line))) {
+            metrics.droppedLogLine();
+        }
+    }
+    
+    private void write() {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        final List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        final StringBuilder sb = new StringBuilder();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Entry entry : batch) {
+                    sb.append(format.format(new Date(entry.time))).append(' ').append(entry.line).append('\n');
+                }
+                out.print(sb);
+                out.flush();
+                batch.clear();
+                sb.setLength(0);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+    
+    
+    private static class Entry {
+        
+        public final long time;
+        public final String line;
+        
+        public Entry(long time, String line) {
+            this.time = time;
+            this.line = line;
+        }
+        
+    }
+    
+}
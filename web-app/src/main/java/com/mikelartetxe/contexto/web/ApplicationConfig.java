@@ -37,6 +37,7 @@ public class ApplicationConfig extends Application {
      * If required, comment out calling this method in getClasses().
      */
     private void addRestResourceClasses(Set<Class<?>> resources) {
+        resources.add(com.mikelartetxe.contexto.web.RequestMonitor.class);
         resources.add(com.mikelartetxe.contexto.web.RestAPI.class);
     }
     
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.web;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+
+// Runs the requests of a dictionary on threads of its own instead of those of
+// the container, with separate pools for searches and autocompletion so that
+// slow searches (e.g. frequent phrases with many examples on cold pages)
+// cannot delay suggestions. Each pool has a bounded queue, and requests that
+// do not fit in it or are not answered within their timeout get a 503 right
+// away instead of piling up. A request that times out while running still
+// holds its thread until it finishes, but the bounded queue keeps them from
+// accumulating.
+class DictionaryExecutor {
+    
+    public static final int SEARCH = 0;
+    public static final int AUTOCOMPLETE = 1;
+    
+    private static final int RETRY_AFTER_SECONDS = 1;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    
+    private final ThreadPoolExecutor pools[];
+    private final long timeouts[]; // In milliseconds
+    
+    public DictionaryExecutor(String name, int searchThreads, int autocompleteThreads, int queueSize,
+            long searchTimeout, long autocompleteTimeout) {
+        pools = new ThreadPoolExecutor[] {
+            pool(name + "-search", searchThreads, queueSize),
+            pool(name + "-autocomplete", autocompleteThreads, queueSize)
+        };
+        timeouts = new long[] {searchTimeout, autocompleteTimeout};
+    }
+    
+    private static ThreadPoolExecutor pool(final String name, int threads, int queueSize) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "contexto-" + name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true); // Idle dictionaries keep no threads
+        return pool;
+    }
+    
+    // Resumes the response with the result of the task, or with a 503 if the
+    // pool is full or the task does not finish in time. Results that are
+    // Closeable (e.g. written as they are read from a dictionary), or
+    // responses with such an entity, are closed once the response is
+    // complete, whether it was written or not.
+    public void submit(int type, final AsyncResponse response, final Callable<?> task) {
+        final AtomicReference<Object> result = new AtomicReference<>();
+        response.setTimeoutHandler(new TimeoutHandler() {
+            @Override
+            public void handleTimeout(AsyncResponse asyncResponse) {
+                asyncResponse.resume(unavailable("Request timed out"));
+            }
+        });
+        response.register(new CompletionCallback() {
+            @Override
+            public void onComplete(Throwable throwable) {
+                close(result.getAndSet(null));
+            }
+        });
+        response.setTimeout(timeouts[type], TimeUnit.MILLISECONDS);
+        try {
+            pools[type].execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!response.isSuspended()) return; // Timed out or cancelled while queued
+                    try {
+                        final Object res = task.call();
+                        result.set(res);
+                        if (!response.resume(res)) close(result.getAndSet(null)); // Timed out in the meantime
+                    } catch (Throwable e) {
+                        response.resume(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            response.resume(unavailable("Too many requests"));
+        }
+    }
+    
+    private static void close(Object result) {
+        if (result instanceof Response) {
+            result = ((Response)result).getEntity();
+        }
+        if (result instanceof Closeable) {
+            try {
+                ((Closeable)result).close();
+            } catch (IOException e) {
+                // Not worth failing the response, which is complete, but
+                // reported without holding up the thread on a stream
+                RestAPI.ACCESS_LOG.log("ERROR: Unable to close the result of a request: " + e);
+            }
+        }
+    }
+    
+    private static Response unavailable(String message) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", RETRY_AFTER_SECONDS)
+                .header("Cache-Control", "no-store")
+                .type(MediaType.TEXT_PLAIN)
+                .entity(message)
+                .build();
+    }
+    
+}
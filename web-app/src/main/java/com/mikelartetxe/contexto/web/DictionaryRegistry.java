@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.web;
+
+import com.mikelartetxe.contexto.core.ContextDictionary;
+import com.mikelartetxe.contexto.core.DictionaryOptions;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+
+// Dictionaries in a directory of models, named after their files without the
+// .dict.bin extension. Models are only opened when first used, so deploying
+// the web app does not wait for all of them, and the directory is watched so
+// that models can be added, replaced or removed without redeploying. A model
+// in use is reopened in the background once its file has not changed for a
+// while and swapped in atomically. The requests that were using the previous
+// version finish with it, and it is only unmapped once the last of them is
+// done. Models should be replaced by moving the new file into place (e.g.
+// with mv), as writing over a mapped file changes the version in use.
+public class DictionaryRegistry implements Closeable {
+    
+    // Notified each time a version of a model is opened or unmapped, or a
+    // changed model cannot be reopened. Models are opened by the thread of the
+    // first request that uses them and versions unmapped by that of the last
+    // one, so listeners should not block.
+    public interface Listener {
+        void loaded(String id, File file);
+        void unloaded(String id, File file);
+        void reloadFailed(String id, File file, Exception e);
+    }
+    
+    private static final String EXTENSION = ".dict.bin";
+    
+    private final File directory;
+    private final DictionaryOptions options;
+    private final long reloadDelay; // In milliseconds
+    private final Set<String> ids = new ConcurrentSkipListSet<>(); // Models in the directory
+    private final ConcurrentMap<String, Version> versions = new ConcurrentHashMap<>(); // Current version of the open ones
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, FutureTask<Version>> loading = new ConcurrentHashMap<>(); // Being opened on first use
+    private final Map<String, ScheduledFuture<?>> pendingReloads = new HashMap<>();
+    private final ScheduledExecutorService reloader;
+    private final WatchService watcher;
+    
+    public DictionaryRegistry(File directory, DictionaryOptions options, long reloadDelay) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IllegalArgumentException("Not a directory: " + directory);
+        }
+        this.directory = directory;
+        this.options = options;
+        this.reloadDelay = reloadDelay;
+        for (File f : directory.listFiles()) {
+            if (f.getName().endsWith(EXTENSION)) ids.add(id(f.getName()));
+        }
+        reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "contexto-registry-reloader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        watcher = directory.toPath().getFileSystem().newWatchService();
+        directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        final Thread watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "contexto-registry-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(ids);
+    }
+    
+    // Version id of the current version of the dictionary (see
+    // ContextDictionary.getVersionId, or versionId for older models), or
+    // null if it is not open
+    public String getVersionId(String id) {
+        final Version version = versions.get(id);
+        return version == null ? null : version.versionId;
+    }
+    
+    // Returns a lease on the current version of the dictionary, opening it if
+    // needed, or null if there is no such dictionary. The lease must be closed
+    // once the request is done with the dictionary and everything read from it.
+    public Lease acquire(String id) throws IOException {
+        while (true) {
+            Version version = versions.get(id);
+            if (version == null) {
+                if (!ids.contains(id)) return null;
+                version = load(id);
+                if (version == null) return null;
+            }
+            if (version.acquire()) return new Lease(version); // Otherwise retired in the meantime
+        }
+    }
+    
+    // Opens the dictionary unless another request did it first. Each model
+    // is opened by the first request that needs it, outside of the lock of
+    // the registry, and the requests for the same model meanwhile wait for
+    // it, so that opening one does not delay the rest.
+    private Version load(final String id) throws IOException {
+        final FutureTask<Version> task = new FutureTask<>(new Callable<Version>() {
+            @Override
+            public Version call() throws IOException {
+                Version version = versions.get(id);
+                if (version != null) return version; // Loaded in the meantime
+                final File file = file(id);
+                if (!file.isFile()) return null;
+                version = open(id, file);
+                synchronized (DictionaryRegistry.this) {
+                    versions.put(id, version);
+                }
+                if (changed(version)) scheduleReload(id); // While it was opened
+                return version;
+            }
+        });
+        final FutureTask<Version> running = loading.putIfAbsent(id, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                loading.remove(id, task);
+            }
+        }
+        try {
+            return (running == null ? task : running).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening " + id);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+    
+    private Version open(String id, File file) throws IOException {
+        final Object key = key(file); // Before opening, so that later changes are noticed
+        final ContextDictionary dictionary = ContextDictionary.fromBinaryModel(file, options);
+        final Version version = new Version(id, file, key, dictionary, versionId(dictionary, key));
+        for (Listener listener : listeners) {
+            listener.loaded(id, file);
+        }
+        return version;
+    }
+    
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so check everything
+                        for (File f : directory.listFiles()) {
+                            if (f.getName().endsWith(EXTENSION)) scheduleReload(id(f.getName()));
+                        }
+                        for (String id : ids) {
+                            scheduleReload(id);
+                        }
+                    } else {
+                        final String name = ((Path)event.context()).getFileName().toString();
+                        if (name.endsWith(EXTENSION)) scheduleReload(id(name));
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+    
+    // Files are written over several events, so the reload waits until no
+    // event has been received for the model in a while
+    private synchronized void scheduleReload(final String id) {
+        final ScheduledFuture<?> pending = pendingReloads.get(id);
+        if (pending != null) pending.cancel(false);
+        pendingReloads.put(id, reloader.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reload(id);
+            }
+        }, reloadDelay, TimeUnit.MILLISECONDS));
+    }
+    
+    // Only called from the reloader thread, so reloads never overlap
+    private void reload(String id) {
+        final File file = file(id);
+        final Version current;
+        synchronized (this) {
+            pendingReloads.remove(id);
+            if (file.isFile()) {
+                ids.add(id);
+            } else {
+                ids.remove(id);
+            }
+            current = versions.get(id);
+            if (current == null) return; // Opened on first use
+            if (!file.isFile()) versions.remove(id);
+        }
+        if (!file.isFile()) {
+            current.retire();
+            return;
+        }
+        try {
+            if (key(file).equals(current.key)) return;
+            final Version next = open(id, file);
+            synchronized (this) {
+                versions.put(id, next);
+            }
+            current.retire();
+        } catch (IOException | RuntimeException e) {
+            // The previous version is still served
+            for (Listener listener : listeners) {
+                listener.reloadFailed(id, file, e);
+            }
+        }
+    }
+    
+    private File file(String id) {
+        return new File(directory, id + EXTENSION);
+    }
+    
+    private static String id(String fileName) {
+        return fileName.substring(0, fileName.length() - EXTENSION.length());
+    }
+    
+    // Models built before versions were stored in them would need to be read
+    // in full to compute it, so their version is taken from the file instead
+    private static String versionId(ContextDictionary dictionary, Object key) {
+        if (dictionary.hasStoredVersionId()) return dictionary.getVersionId();
+        final CRC32 crc = new CRC32();
+        crc.update(key.toString().getBytes(StandardCharsets.UTF_8));
+        return String.format("file-%08x", crc.getValue());
+    }
+    
+    private boolean changed(Version version) {
+        try {
+            return !key(version.file).equals(version.key);
+        } catch (IOException e) {
+            return true; // Removed
+        }
+    }
+    
+    // Identifies a version of a file, which either changes its modification
+    // time or is a different file (i.e. moved into place) when replaced
+    private static Object key(File file) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+    }
+    
+    // Stops watching the directory and unmaps the models once the requests
+    // using them are done
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        reloader.shutdownNow();
+        synchronized (this) {
+            for (Version version : versions.values()) {
+                version.retire();
+            }
+            versions.clear();
+        }
+    }
+    
+    
+    private class Version {
+        
+        public final String id;
+        public final File file;
+        public final Object key;
+        public final ContextDictionary dictionary;
+        public final String versionId;
+        private final AtomicInteger references = new AtomicInteger(1); // One for being the current version
+        
+        public Version(String id, File file, Object key, ContextDictionary dictionary, String versionId) {
+            this.id = id;
+            this.file = file;
+            this.key = key;
+            this.dictionary = dictionary;
+            this.versionId = versionId;
+        }
+        
+        // Fails once the version has been retired and released
+        public boolean acquire() {
+            while (true) {
+                final int n = references.get();
+                if (n == 0) return false;
+                if (references.compareAndSet(n, n + 1)) return true;
+            }
+        }
+        
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                dictionary.close();
+                for (Listener listener : listeners) {
+                    listener.unloaded(id, file);
+                }
+            }
+        }
+        
+        // No longer the current version
+        public void retire() {
+            release();
+        }
+        
+    }
+    
+    // A version of a dictionary in use by a request
+    public static class Lease implements Closeable {
+        
+        private final Version version;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        
+        private Lease(Version version) {
+            this.version = version;
+        }
+        
+        public String getId() {
+            return version.id;
+        }
+        
+        public File getFile() {
+            return version.file;
+        }
+        
+        public ContextDictionary getDictionary() {
+            return version.dictionary;
+        }
+        
+        public String getVersionId() {
+            return version.versionId;
+        }
+        
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) version.release();
+        }
+        
+    }
+    
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.web;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// Counters and latency histograms of the requests for each endpoint and
+// dictionary, written in the Prometheus text format. Percentiles are left to
+// Prometheus (e.g. histogram_quantile(0.99, rate(..._bucket[5m]))), as they
+// can then be aggregated over time and over servers. Recording a request
+// only updates a few atomic counters, so it does not make them wait on each
+// other.
+class RequestMetrics {
+    
+    // Upper bounds of the latency buckets, in seconds
+    private static final double BUCKETS[] = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    
+    private final ConcurrentMap<List<String>, Series> series = new ConcurrentHashMap<>();
+    private final AtomicLong droppedLogLines = new AtomicLong();
+    
+    // Results are translations or suggestions, and examples those of the
+    // translations, besides those skipped because they could not be read.
+    // Failed requests are those with a 5xx status or that could not be
+    // written.
+    public void record(String endpoint, String dictionary, int status, boolean failed, long nanos,
+            long results, long examples, long skippedExamples) {
+        final List<String> key = Arrays.asList(endpoint, dictionary);
+        Series s = series.get(key);
+        if (s == null) {
+            final Series created = new Series(endpoint, dictionary);
+            s = series.putIfAbsent(key, created);
+            if (s == null) s = created;
+        }
+        s.record(status, failed, nanos, results, examples, skippedExamples);
+    }
+    
+    public void droppedLogLine() {
+        droppedLogLines.incrementAndGet();
+    }
+    
+    public String format() {
+        final List<Series> sorted = new ArrayList<>(series.values());
+        Collections.sort(sorted, BY_LABELS);
+        final StringBuilder sb = new StringBuilder();
+        
+        header(sb, "contexto_request_duration_seconds", "histogram", "Time to answer requests, including writing the response.");
+        for (Series s : sorted) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += s.buckets.get(i);
+                sample(sb, "contexto_request_duration_seconds_bucket", s.labels + ",le=\"" + BigDecimal.valueOf(BUCKETS[i]).toPlainString() + "\"", cumulative);
+            }
+            cumulative += s.buckets.get(BUCKETS.length);
+            sample(sb, "contexto_request_duration_seconds_bucket", s.labels + ",le=\"+Inf\"", cumulative);
+            sb.append("contexto_request_duration_seconds_sum{").append(s.labels).append("} ")
+                    .append(s.nanos.get() / 1e9).append('\n');
+            sample(sb, "contexto_request_duration_seconds_count", s.labels, cumulative);
+        }
+        
+        header(sb, "contexto_requests_total", "counter", "Requests answered, by status code.");
+        for (Series s : sorted) {
+            final List<Map.Entry<Integer, AtomicLong>> codes = new ArrayList<>(s.codes.entrySet());
+            Collections.sort(codes, BY_CODE);
+            for (Map.Entry<Integer, AtomicLong> code : codes) {
+                sample(sb, "contexto_requests_total", s.labels + ",code=\"" + code.getKey() + "\"", code.getValue().get());
+            }
+        }
+        
+        header(sb, "contexto_request_errors_total", "counter", "Requests that failed with a 5xx status or could not be written.");
+        for (Series s : sorted) {
+            sample(sb, "contexto_request_errors_total", s.labels, s.errors.get());
+        }
+        
+        header(sb, "contexto_results_total", "counter", "Translations or suggestions returned.");
+        for (Series s : sorted) {
+            sample(sb, "contexto_results_total", s.labels, s.results.get());
+        }
+        
+        header(sb, "contexto_examples_total", "counter", "Examples returned with the translations.");
+        for (Series s : sorted) {
+            sample(sb, "contexto_examples_total", s.labels, s.examples.get());
+        }
+        
+        header(sb, "contexto_examples_skipped_total", "counter", "Examples left out because they could not be read from the corpus.");
+        for (Series s : sorted) {
+            sample(sb, "contexto_examples_skipped_total", s.labels, s.skippedExamples.get());
+        }
+        
+        header(sb, "contexto_access_log_dropped_total", "counter", "Access log lines dropped because the log could not keep up.");
+        sb.append("contexto_access_log_dropped_total ").append(droppedLogLines.get()).append('\n');
+        return sb.toString();
+    }
+    
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+    
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    private static final Comparator<Series> BY_LABELS = new Comparator<Series>() {
+        @Override
+        public int compare(Series a, Series b) {
+            return a.labels.compareTo(b.labels);
+        }
+    };
+    
+    private static final Comparator<Map.Entry<Integer, AtomicLong>> BY_CODE = new Comparator<Map.Entry<Integer, AtomicLong>>() {
+        @Override
+        public int compare(Map.Entry<Integer, AtomicLong> a, Map.Entry<Integer, AtomicLong> b) {
+            return a.getKey().compareTo(b.getKey());
+        }
+    };
+    
+    
+    private static class Series {
+        
+        public final String labels;
+        public final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1); // Not cumulative
+        public final AtomicLong nanos = new AtomicLong();
+        public final ConcurrentMap<Integer, AtomicLong> codes = new ConcurrentHashMap<>();
+        public final AtomicLong errors = new AtomicLong();
+        public final AtomicLong results = new AtomicLong();
+        public final AtomicLong examples = new AtomicLong();
+        public final AtomicLong skippedExamples = new AtomicLong();
+        
+        public Series(String endpoint, String dictionary) {
+            labels = "endpoint=\"" + escape(endpoint) + "\",dictionary=\"" + escape(dictionary) + "\"";
+        }
+        
+        public void record(int status, boolean failed, long nanos, long results, long examples, long skippedExamples) {
+            final double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) bucket++;
+            buckets.incrementAndGet(bucket);
+            this.nanos.addAndGet(nanos);
+            AtomicLong count = codes.get(status);
+            if (count == null) {
+                final AtomicLong created = new AtomicLong();
+                count = codes.putIfAbsent(status, created);
+                if (count == null) count = created;
+            }
+            count.incrementAndGet();
+            if (failed) errors.incrementAndGet();
+            this.results.addAndGet(results);
+            this.examples.addAndGet(examples);
+            this.skippedExamples.addAndGet(skippedExamples);
+        }
+        
+    }
+    
+}
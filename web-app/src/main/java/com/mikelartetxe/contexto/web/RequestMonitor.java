@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.web;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+
+// Records the metrics and the access log line of each request once it is
+// complete. Responses with an entity are only complete once it is written,
+// which for search responses is also when they are read from the dictionary
+// (see SearchResponseStream), so those are recorded around the writer.
+@Provider
+@PreMatching
+public class RequestMonitor implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+    
+    private static final String START = RequestMonitor.class.getName() + ".start";
+    private static final String PENDING = RequestMonitor.class.getName() + ".pending";
+    
+    // Anything else is recorded as "other", so that the labels are bounded
+    private static final Set<String> ENDPOINTS = new HashSet<>(Arrays.asList(
+            "search", "autocomplete", "list_dictionaries", "metrics"));
+    
+    @Override
+    public void filter(ContainerRequestContext request) {
+        request.setProperty(START, System.nanoTime());
+    }
+    
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+        final Object start = request.getProperty(START);
+        if (start == null) return;
+        final Pending pending = new Pending(request, response.getStatus(), (Long)start);
+        if (response.hasEntity()) {
+            request.setProperty(PENDING, pending);
+        } else {
+            pending.done(null, false);
+        }
+    }
+    
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        final Pending pending = (Pending)context.getProperty(PENDING);
+        if (pending == null) {
+            context.proceed();
+            return;
+        }
+        boolean written = false;
+        try {
+            context.proceed();
+            written = true;
+        } finally {
+            pending.done(context.getEntity(), !written);
+        }
+    }
+    
+    // Parameters come from the client, so spaces are replaced and control
+    // characters escaped to keep each request in a single line of its own
+    private static StringBuilder escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == ' ') {
+                sb.append('_');
+            } else if (c == '\\') {
+                sb.append("\\\\");
+            } else if (Character.isISOControl(c) || c == 0x2028 || c == 0x2029) {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb;
+    }
+    
+    
+    private static class Pending {
+        
+        private final String endpoint, dictionary, query;
+        private final boolean known; // Whether the dictionary exists
+        private final int status;
+        private final long start;
+        
+        public Pending(ContainerRequestContext request, int status, long start) {
+            final List<String> segments = Arrays.asList(request.getUriInfo().getPath().split("/"));
+            final String last = segments.get(segments.size() - 1);
+            final MultivaluedMap<String, String> parameters = request.getUriInfo().getQueryParameters();
+            endpoint = ENDPOINTS.contains(last) ? last : "other";
+            dictionary = parameters.getFirst("dict");
+            query = parameters.getFirst("q");
+            known = dictionary != null && RestAPI.isDictionary(dictionary);
+            this.status = status;
+            this.start = start;
+        }
+        
+        public void done(Object entity, boolean writeFailed) {
+            final long nanos = System.nanoTime() - start;
+            final boolean failed = writeFailed || status >= 500;
+            long results = 0, examples = 0, skippedExamples = 0;
+            if (entity instanceof SearchResponseStream) {
+                results = ((SearchResponseStream)entity).getTranslationsWritten();
+                examples = ((SearchResponseStream)entity).getExamplesWritten();
+                skippedExamples = ((SearchResponseStream)entity).getExamplesSkipped();
+            } else if (entity instanceof AutocompleteResponse) {
+                results = ((AutocompleteResponse)entity).getSuggestions().size();
+            }
+            // Unknown dictionaries are not labelled, so that the labels are bounded
+            RestAPI.METRICS.record(endpoint, known ? dictionary : "", status, failed, nanos, results, examples, skippedExamples);
+            if (RestAPI.ACCESS_LOG.isSampled(failed)) {
+                final StringBuilder line = new StringBuilder(endpoint.toUpperCase());
+                if (dictionary != null) escape(line.append(" ("), dictionary).append(')');
+                if (query != null) escape(line.append(": "), query);
+                line.append(' ').append(writeFailed ? "FAILED" : status);
+                line.append(' ').append(String.format(Locale.ROOT, "%.3f", nanos / 1e6)).append(" ms");
+                if (skippedExamples > 0) line.append(" (").append(skippedExamples).append(" examples skipped)");
+                RestAPI.ACCESS_LOG.log(line.toString());
+            }
+        }
+        
+    }
+    
+}
@@ -18,23 +18,45 @@
 package com.mikelartetxe.contexto.web;
 
 import com.mikelartetxe.contexto.core.ContextDictionary;
+import com.mikelartetxe.contexto.core.DictionaryOptions;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.Produces;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.Path;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
 
 @Path("rest")
 public class RestAPI {
-        
-    private static final Map<String, ContextDictionary> ID2MODEL;
+    
+    private static final int DEFAULT_AUTOCOMPLETE_PAGE = 10;
+    
+    private static final DictionaryRegistry REGISTRY;
+    private static final ConcurrentMap<String, DictionaryExecutor> ID2EXECUTOR = new ConcurrentHashMap<>();
+    private static final int SEARCH_THREADS, AUTOCOMPLETE_THREADS, QUEUE_SIZE, MAX_SUGGESTIONS;
+    private static final long SEARCH_TIMEOUT, AUTOCOMPLETE_TIMEOUT;
+    private static final boolean LOAD_CORPORA;
+    private static final CacheControl CACHE_CONTROL = new CacheControl();
+    static final RequestMetrics METRICS = new RequestMetrics();
+    static final AccessLog ACCESS_LOG;
     
     static {
         try {
@@ -42,13 +64,44 @@ public class RestAPI {
             if (modelDir == null) {
                 throw new RuntimeException("ERROR: Required system property unset (dictionary.models)");
             }
-            ID2MODEL = new HashMap<>();
-            for (File f : new File(modelDir).listFiles()) {
-                if (f.getName().endsWith(".dict.bin")) {
-                    final String id = f.getName().substring(0, f.getName().length() - 9);
-                    ID2MODEL.put(id, ContextDictionary.fromBinaryModel(f));
+            final DictionaryOptions options = new DictionaryOptions()
+                    .setHotIndexLevels(Integer.getInteger("dictionary.hot_index_levels", 0))
+                    .setHotIndexMaxBytes(Long.getLong("dictionary.hot_index_max_bytes", Long.MAX_VALUE))
+                    .setResultCacheMaxBytes(Long.getLong("dictionary.result_cache_max_bytes", 0))
+                    .setCorpusCacheMaxBytes(Long.getLong("dictionary.corpus_cache_max_bytes", 16 << 20))
+                    .setIndexInMemory(Boolean.getBoolean("dictionary.index_in_memory"))
+                    .setLoadCorpora(Boolean.parseBoolean(System.getProperty("dictionary.load_corpora", "true")));
+            LOAD_CORPORA = options.getLoadCorpora();
+            CACHE_CONTROL.setMaxAge(Integer.getInteger("dictionary.cache_max_age", 60));
+            final String accessLog = System.getProperty("dictionary.access_log");
+            ACCESS_LOG = new AccessLog(
+                    accessLog == null ? System.err : new PrintStream(new FileOutputStream(accessLog, true), false, "UTF-8"),
+                    Double.parseDouble(System.getProperty("dictionary.access_log_sample", "1")),
+                    Integer.getInteger("dictionary.access_log_queue_size", 4096), METRICS);
+            final int processors = Runtime.getRuntime().availableProcessors();
+            SEARCH_THREADS = Integer.getInteger("dictionary.search_threads", processors);
+            AUTOCOMPLETE_THREADS = Integer.getInteger("dictionary.autocomplete_threads", processors);
+            QUEUE_SIZE = Integer.getInteger("dictionary.queue_size", 64);
+            SEARCH_TIMEOUT = Long.getLong("dictionary.search_timeout_ms", 10000);
+            AUTOCOMPLETE_TIMEOUT = Long.getLong("dictionary.autocomplete_timeout_ms", 1000);
+            MAX_SUGGESTIONS = Integer.getInteger("dictionary.autocomplete_max_results", 1000);
+            REGISTRY = new DictionaryRegistry(new File(modelDir), options, Long.getLong("dictionary.reload_delay_ms", 1000));
+            // Logged without sampling, and never waiting for the stream, as
+            // models are opened and unmapped by the threads of the requests
+            REGISTRY.addListener(new DictionaryRegistry.Listener() {
+                @Override
+                public void loaded(String id, File file) {
+                    ACCESS_LOG.log("LOAD (" + id + "): " + file);
                 }
-            }
+                @Override
+                public void unloaded(String id, File file) {
+                    ACCESS_LOG.log("UNLOAD (" + id + "): " + file);
+                }
+                @Override
+                public void reloadFailed(String id, File file, Exception e) {
+                    ACCESS_LOG.log("ERROR: Unable to reload " + file + ": " + e);
+                }
+            });
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -63,24 +116,143 @@ public class RestAPI {
     @Path("list_dictionaries")
     @Produces(MediaType.APPLICATION_JSON)
     public ListDictionariesResponse search() {
-        System.err.println("LIST_DICTIONARIES");
-        return ListDictionariesResponse.fromCollection(ID2MODEL.keySet());
+        return ListDictionariesResponse.fromCollection(REGISTRY.getIds());
+    }
+    
+    @GET
+    @Path("metrics")
+    @Produces("text/plain; version=0.0.4; charset=utf-8")
+    public String metrics() {
+        return METRICS.format();
     }
     
     @GET
     @Path("search")
     @Produces(MediaType.APPLICATION_JSON)
-    public SearchResponse search(@QueryParam("q") String query, @QueryParam("dict") String dict) {
-        System.err.println("SEARCH (" + dict + "): " + query.replace(" ", "_"));
-        return SearchResponse.fromAPI(ID2MODEL.get(dict).search(query));
+    public void search(@Suspended AsyncResponse response,
+            @QueryParam("q") final String query, @QueryParam("dict") final String dict,
+            @QueryParam("max_translations") @DefaultValue("2147483647") final int maxTranslations,
+            @QueryParam("max_examples") @DefaultValue("2147483647") final int maxExamples,
+            @HeaderParam("If-None-Match") final String ifNoneMatch) {
+        if (maxTranslations < 0 || maxExamples < 0) {
+            throw new BadRequestException("Negative number of translations or examples");
+        }
+        final DictionaryExecutor executor = getExecutor(dict);
+        if (notModified(response, REGISTRY.getVersionId(dict), ifNoneMatch)) return;
+        executor.submit(DictionaryExecutor.SEARCH, response, new Callable<Response>() {
+            @Override
+            public Response call() throws IOException {
+                final DictionaryRegistry.Lease lease = acquire(dict);
+                try {
+                    final EntityTag tag = entityTag(lease.getVersionId());
+                    if (matches(ifNoneMatch, tag)) {
+                        lease.close();
+                        return notModified(tag);
+                    }
+                    final ContextDictionary model = lease.getDictionary();
+                    return cacheable(Response.ok(new SearchResponseStream(
+                            model.search(query, maxTranslations, model.hasCorpora() ? maxExamples : 0), lease)), tag);
+                } catch (RuntimeException e) {
+                    lease.close();
+                    throw e;
+                }
+            }
+        });
     }
     
     @GET
     @Path("autocomplete")
     @Produces(MediaType.APPLICATION_JSON)
-    public AutocompleteResponse autocomplete(@QueryParam("q") String query, @QueryParam("dict") String dict) {
-        System.err.println("AUTOCOMPLETE (" + dict + "): " + query.replace(" ", "_"));
-        return AutocompleteResponse.fromAPI(ID2MODEL.get(dict).autocomplete(query));
+    public void autocomplete(@Suspended AsyncResponse response,
+            @QueryParam("q") final String query, @QueryParam("dict") final String dict,
+            @QueryParam("k") final Integer k, @QueryParam("offset") @DefaultValue("0") final int offset,
+            @HeaderParam("If-None-Match") final String ifNoneMatch) {
+        // Deeper pages need a search of the dictionary that grows with them
+        if ((k != null && k < 0) || offset < 0) {
+            throw new BadRequestException("Negative number of suggestions or offset");
+        }
+        if ((long)offset + (k == null ? DEFAULT_AUTOCOMPLETE_PAGE : k) > MAX_SUGGESTIONS) {
+            throw new BadRequestException("Suggestions beyond the first " + MAX_SUGGESTIONS + " requested");
+        }
+        final DictionaryExecutor executor = getExecutor(dict);
+        if (notModified(response, REGISTRY.getVersionId(dict), ifNoneMatch)) return;
+        executor.submit(DictionaryExecutor.AUTOCOMPLETE, response, new Callable<Response>() {
+            @Override
+            public Response call() throws IOException {
+                try (DictionaryRegistry.Lease lease = acquire(dict)) {
+                    final EntityTag tag = entityTag(lease.getVersionId());
+                    if (matches(ifNoneMatch, tag)) return notModified(tag);
+                    final ContextDictionary model = lease.getDictionary();
+                    return cacheable(Response.ok(AutocompleteResponse.fromAPI(k == null && offset == 0 ?
+                            model.autocomplete(query) :
+                            model.autocomplete(query, k == null ? DEFAULT_AUTOCOMPLETE_PAGE : k, offset))), tag);
+                }
+            }
+        });
+    }
+    
+    // Results only depend on the query and the model, so they can be cached
+    // for as long as the model does not change, and revalidated against its
+    // version afterwards. Examples are left out if the corpora are not
+    // loaded, so those responses get a different tag.
+    private static EntityTag entityTag(String versionId) {
+        return new EntityTag(LOAD_CORPORA ? versionId : versionId + "-nocorpora");
+    }
+    
+    private static Response cacheable(Response.ResponseBuilder builder, EntityTag tag) {
+        return builder.tag(tag).cacheControl(CACHE_CONTROL).build();
+    }
+    
+    private static Response notModified(EntityTag tag) {
+        return Response.notModified(tag).cacheControl(CACHE_CONTROL).build();
+    }
+    
+    // Answers right away, without waiting for a thread, if the dictionary is
+    // open and the client already has the response for its current version
+    private static boolean notModified(AsyncResponse response, String versionId, String ifNoneMatch) {
+        if (versionId == null || !matches(ifNoneMatch, entityTag(versionId))) return false;
+        response.resume(notModified(entityTag(versionId)));
+        return true;
+    }
+    
+    // If-None-Match uses the weak comparison, so W/ prefixes are ignored
+    private static boolean matches(String ifNoneMatch, EntityTag tag) {
+        if (ifNoneMatch == null) return false;
+        final String quoted = "\"" + tag.getValue() + "\"";
+        for (String t : ifNoneMatch.split(",")) {
+            t = t.trim();
+            if (t.startsWith("W/")) t = t.substring(2);
+            if (t.equals("*") || t.equals(quoted)) return true;
+        }
+        return false;
+    }
+    
+    static boolean isDictionary(String dict) {
+        return REGISTRY.getIds().contains(dict);
+    }
+    
+    private static DictionaryExecutor getExecutor(String dict) {
+        if (dict == null || !REGISTRY.getIds().contains(dict)) {
+            throw new NotFoundException("Unknown dictionary: " + dict);
+        }
+        DictionaryExecutor executor = ID2EXECUTOR.get(dict);
+        if (executor == null) {
+            final DictionaryExecutor created = new DictionaryExecutor(dict, SEARCH_THREADS, AUTOCOMPLETE_THREADS,
+                    QUEUE_SIZE, SEARCH_TIMEOUT, AUTOCOMPLETE_TIMEOUT);
+            executor = ID2EXECUTOR.putIfAbsent(dict, created);
+            if (executor == null) executor = created;
+        }
+        return executor;
+    }
+    
+    // The dictionary is opened on first use, on the threads of the executor,
+    // and kept from being unmapped until the response has been built
+    private static DictionaryRegistry.Lease acquire(String dict) throws IOException {
+        final DictionaryRegistry.Lease lease = REGISTRY.acquire(dict);
+        if (lease == null) {
+            throw new NotFoundException("Unknown dictionary: " + dict); // Removed in the meantime
+        }
+        return lease;
     }
     
 }
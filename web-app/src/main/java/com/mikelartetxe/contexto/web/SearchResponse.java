@@ -42,8 +42,9 @@ public class SearchResponse {
             final TranslationResponse t = new TranslationResponse();
             t.setTranslation(translation.getTranslation());
             t.setFrequency(translation.getFrequency());
-            final List<TranslationExampleResponse> examples = new ArrayList<>(translation.getExamples().size());
-            for (TranslationExample example : translation.getExamples()) {
+            final List<TranslationExample> translationExamples = translation.getExamples();
+            final List<TranslationExampleResponse> examples = new ArrayList<>(translationExamples.size());
+            for (TranslationExample example : translationExamples) {
                 try {
                     final TranslationExampleResponse e = new TranslationExampleResponse();
                     e.setSrcLeftContext(example.getSrcLeftContext());
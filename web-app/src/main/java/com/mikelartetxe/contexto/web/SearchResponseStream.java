@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017  Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mikelartetxe.contexto.web;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mikelartetxe.contexto.core.Translation;
+import com.mikelartetxe.contexto.core.TranslationExample;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import javax.ws.rs.core.StreamingOutput;
+
+
+// Writes the same JSON as SearchResponse straight from the results of the
+// dictionary, reading each example from the corpus as it is written instead
+// of building the whole response first. Contexts and phrases are copied from
+// the UTF-8 bytes of the sentences, so no String is decoded for them. As the
+// results are read while the response is written, the lease on the
+// dictionary they come from is kept until then (see DictionaryExecutor).
+class SearchResponseStream implements StreamingOutput, Closeable {
+    
+    private static final Charset CHARSET = Charset.forName("utf-8");
+    private static final JsonFactory FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    
+    private final List<Translation> translations;
+    private final DictionaryRegistry.Lease lease;
+    private long translationsWritten = 0, examplesWritten = 0, examplesSkipped = 0;
+    
+    public SearchResponseStream(List<Translation> translations, DictionaryRegistry.Lease lease) {
+        this.translations = translations;
+        this.lease = lease;
+    }
+    
+    @Override
+    public void write(OutputStream os) throws IOException {
+        final JsonGenerator generator = FACTORY.createGenerator(os, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("translations");
+        for (Translation translation : translations) {
+            generator.writeStartObject();
+            generator.writeStringField("translation", translation.getTranslation());
+            generator.writeNumberField("frequency", translation.getFrequency());
+            generator.writeArrayFieldStart("examples");
+            for (TranslationExample example : translation.getExamples()) {
+                // Both sentences are read before writing anything, so that
+                // broken examples are skipped as a whole like in SearchResponse.
+                // They are counted in the metrics and the access log instead
+                // of writing a stack trace from the request.
+                final byte src[], trg[];
+                try {
+                    src = check(example.getSrcSentenceBytes(), example.getSrcPhraseStart(), example.getSrcPhraseEnd());
+                    trg = check(example.getTrgSentenceBytes(), example.getTrgPhraseStart(), example.getTrgPhraseEnd());
+                } catch (RuntimeException e) {
+                    examplesSkipped++;
+                    continue;
+                }
+                generator.writeStartObject();
+                writeField(generator, "srcLeftContext", src, 0, example.getSrcPhraseStart());
+                writeField(generator, "srcPhrase", src, example.getSrcPhraseStart(), example.getSrcPhraseEnd());
+                writeField(generator, "srcRightContext", src, example.getSrcPhraseEnd(), src.length);
+                writeField(generator, "trgLeftContext", trg, 0, example.getTrgPhraseStart());
+                writeField(generator, "trgPhrase", trg, example.getTrgPhraseStart(), example.getTrgPhraseEnd());
+                writeField(generator, "trgRightContext", trg, example.getTrgPhraseEnd(), trg.length);
+                generator.writeEndObject();
+                examplesWritten++;
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            translationsWritten++;
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.flush();
+    }
+    
+    public long getTranslationsWritten() {
+        return translationsWritten;
+    }
+    
+    public long getExamplesWritten() {
+        return examplesWritten;
+    }
+    
+    // Examples that could not be read from the corpus
+    public long getExamplesSkipped() {
+        return examplesSkipped;
+    }
+    
+    private static byte[] check(byte sentence[], int phraseStart, int phraseEnd) {
+        if (phraseStart < 0 || phraseStart > phraseEnd || phraseEnd > sentence.length) {
+            throw new IllegalStateException("Phrase out of the sentence: [" + phraseStart + ", " + phraseEnd + ")");
+        }
+        return sentence;
+    }
+    
+    private static void writeField(JsonGenerator generator, String name, byte bytes[], int from, int to) throws IOException {
+        generator.writeFieldName(name);
+        if (isWellFormed(bytes, from, to)) {
+            generator.writeUTF8String(bytes, from, to - from);
+        } else {
+            generator.writeString(new String(bytes, from, to - from, CHARSET)); // Replaces malformed sequences
+        }
+    }
+    
+    // Whether the bytes are well-formed UTF-8, which they are unless the
+    // corpus is broken, as decoding them would give other characters otherwise
+    private static boolean isWellFormed(byte bytes[], int from, int to) {
+        int i = from;
+        while (i < to) {
+            final int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            final int continuations;
+            int min = 0x80, max = 0xBF; // Of the second byte
+            if (b >= 0xC2 && b <= 0xDF) {
+                continuations = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuations = 2;
+                if (b == 0xE0) min = 0xA0; // Overlong
+                if (b == 0xED) max = 0x9F; // Surrogates
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuations = 3;
+                if (b == 0xF0) min = 0x90; // Overlong
+                if (b == 0xF4) max = 0x8F; // Beyond U+10FFFF
+            } else {
+                return false;
+            }
+            if (i + continuations >= to) return false;
+            for (int j = 1; j <= continuations; j++) {
+                final int c = bytes[i + j] & 0xFF;
+                if (c < (j == 1 ? min : 0x80) || c > (j == 1 ? max : 0xBF)) return false;
+            }
+            i += continuations + 1;
+        }
+        return true;
+    }
+    
+    @Override
+    public void close() {
+        lease.close();
+    }
+    
+}